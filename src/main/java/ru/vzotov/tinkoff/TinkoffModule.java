@@ -1,25 +1,214 @@
 package ru.vzotov.tinkoff;
 
+import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
-import ru.vzotov.accounting.domain.model.AccountReportRepository;
-import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import org.springframework.context.annotation.ImportRuntimeHints;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+import ru.vzotov.tinkoff.application.TinkoffReportListener;
+import ru.vzotov.tinkoff.application.impl.AccountReportServiceTinkoff;
+import ru.vzotov.tinkoff.application.impl.AdaptiveConcurrencyLimiter;
+import ru.vzotov.tinkoff.application.impl.TinkoffInboxScheduler;
+import ru.vzotov.tinkoff.application.impl.TinkoffMonthlyRollups;
+import ru.vzotov.tinkoff.application.impl.TinkoffOperationLogListener;
+import ru.vzotov.tinkoff.application.impl.TinkoffReportBackfill;
+import ru.vzotov.tinkoff.application.impl.TinkoffReportPrefetcher;
+import ru.vzotov.tinkoff.application.impl.TinkoffWatermarks;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportRepository;
+import ru.vzotov.tinkoff.infrastructure.fs.ReactiveTinkoffReportRepository;
+import ru.vzotov.tinkoff.infrastructure.fs.ReportArchive;
+import ru.vzotov.tinkoff.infrastructure.fs.TinkoffOperationLog;
 import ru.vzotov.tinkoff.infrastructure.fs.TinkoffReportRepositoryFiles;
 
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 @Configuration
+@ImportRuntimeHints(TinkoffRuntimeHints.class)
 public class TinkoffModule {
 
     private static final Logger log = LoggerFactory.getLogger(TinkoffModule.class);
 
     @Bean
-    public AccountReportRepository<TinkoffOperation> accountReportRepositoryTinkoff(
-            @Value("${tinkoff.reports.path}") String baseDirectoryPath) {
+    public TinkoffReportRepository accountReportRepositoryTinkoff(
+            @Value("${tinkoff.reports.path}") String baseDirectoryPath,
+            @Value("${tinkoff.reports.archive.enabled:false}") boolean archiveEnabled,
+            @Value("${tinkoff.reports.archive.path:}") String archiveDirectoryPath,
+            @Value("${tinkoff.reports.archive.compress:false}") boolean archiveCompressed) {
         log.info("Create tinkoff report repository for path {}", baseDirectoryPath);
-        return new TinkoffReportRepositoryFiles(baseDirectoryPath);
+        if (!archiveEnabled) {
+            return new TinkoffReportRepositoryFiles(baseDirectoryPath);
+        }
+
+        final File archiveDirectory = archiveDirectoryPath.isEmpty() ?
+                new File(baseDirectoryPath, "archive") : new File(archiveDirectoryPath);
+        log.info("Processed tinkoff reports are archived to {}, compressed: {}", archiveDirectory, archiveCompressed);
+        return new TinkoffReportRepositoryFiles(baseDirectoryPath, false,
+                new ReportArchive(archiveDirectory, archiveCompressed));
+    }
+
+    /**
+     * Scheduler of the default inbox and of the inboxes of tenants.
+     * Inboxes of tenants are listed as {@code name:weight:path} separated by commas. Each tenant has own
+     * watermarks and rollups, persisted in the inbox of the tenant when they are persisted for the default inbox,
+     * and records its reports in the operation log under the name of the inbox.
+     */
+    @Bean(destroyMethod = "close")
+    public TinkoffInboxScheduler tinkoffInboxScheduler(
+            @Qualifier("AccountReportServiceTinkoff") AccountReportServiceTinkoff accountReportService,
+            @Qualifier("accountReportRepositoryTinkoff") TinkoffReportRepository repository,
+            ObjectProvider<TinkoffOperationLog> operationLog,
+            @Value("${tinkoff.reports.weight:1}") int weight,
+            @Value("${tinkoff.inboxes.tenants:}") String tenants,
+            @Value("${tinkoff.inboxes.workers:2}") int workers,
+            @Value("${tinkoff.inboxes.retry-delay-minutes:10}") int retryDelayMinutes,
+            @Value("${tinkoff.reports.archive.enabled:false}") boolean archiveEnabled,
+            @Value("${tinkoff.reports.archive.compress:false}") boolean archiveCompressed,
+            @Value("${tinkoff.watermarks.path:}") String watermarksPath,
+            @Value("${tinkoff.watermarks.margin-days:10}") int marginDays,
+            @Value("${tinkoff.watermarks.skip:false}") boolean skipEnabled,
+            @Value("${tinkoff.rollups.path:}") String rollupsPath) {
+        final List<TinkoffInboxScheduler.Inbox> inboxes = new ArrayList<>();
+        inboxes.add(new TinkoffInboxScheduler.Inbox("default", repository, weight));
+        for (String tenant : tenants.split(",")) {
+            if (tenant.isBlank()) {
+                continue;
+            }
+            final String[] spec = tenant.trim().split(":", 3);
+            Validate.isTrue(spec.length == 3, "Invalid inbox %s, expected name:weight:path", tenant);
+            log.info("Create tinkoff report repository of tenant {} for path {}", spec[0], spec[2]);
+            final TinkoffReportRepository tenantRepository = archiveEnabled ?
+                    new TinkoffReportRepositoryFiles(spec[2], false,
+                            new ReportArchive(new File(spec[2], "archive"), archiveCompressed)) :
+                    new TinkoffReportRepositoryFiles(spec[2]);
+            final TinkoffWatermarks watermarks = new TinkoffWatermarks(
+                    watermarksPath.isEmpty() ? null : new File(spec[2], ".watermarks"),
+                    Duration.ofDays(marginDays), skipEnabled);
+            final List<TinkoffReportListener> listeners = new ArrayList<>(List.of(watermarks,
+                    new TinkoffMonthlyRollups(rollupsPath.isEmpty() ? null : new File(spec[2], ".rollups"))));
+            operationLog.ifAvailable(oplog -> listeners.add(new TinkoffOperationLogListener(oplog, spec[0])));
+            inboxes.add(new TinkoffInboxScheduler.Inbox(spec[0], tenantRepository, Integer.parseInt(spec[1]),
+                    listeners, watermarks));
+        }
+        log.info("Create scheduler of {} tinkoff inboxes, {} workers, retry of failed reports in {} minutes",
+                inboxes.size(), workers, retryDelayMinutes);
+        return new TinkoffInboxScheduler(accountReportService, inboxes, workers, Duration.ofMinutes(retryDelayMinutes));
+    }
+
+    @Bean
+    public ReactiveTinkoffReportRepository reactiveAccountReportRepositoryTinkoff(
+            @Qualifier("accountReportRepositoryTinkoff") TinkoffReportRepository repository) {
+        return new ReactiveTinkoffReportRepository(repository);
+    }
+
+    @Bean
+    public TinkoffReportBackfill tinkoffReportBackfill(
+            @Qualifier("accountReportRepositoryTinkoff") TinkoffReportRepository repository,
+            @Qualifier("AccountReportServiceTinkoff") AccountReportServiceTinkoff accountReportService,
+            @Value("${tinkoff.backfill.parallelism:4}") int parallelism,
+            @Value("${tinkoff.backfill.rate:0}") double operationsPerSecond,
+            @Value("${tinkoff.backfill.spill-path:${java.io.tmpdir}}") String spillPath,
+            @Value("${tinkoff.backfill.memory-budget:67108864}") long memoryBudget) {
+        log.info("Create backfill of tinkoff reports, parallelism {}, rate {} operations per second",
+                parallelism, operationsPerSecond > 0 ? operationsPerSecond : "unlimited");
+        return new TinkoffReportBackfill(repository, accountReportService, parallelism, operationsPerSecond,
+                new File(spillPath), memoryBudget);
+    }
+
+    /**
+     * Workers registering statements of multi-account reports, shared by all inboxes
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService tinkoffStatementExecutor(@Value("${tinkoff.statements.parallelism:8}") int parallelism) {
+        Validate.isTrue(parallelism > 0, "Invalid parallelism of statements %s", parallelism);
+        log.info("Create workers of statements of multi-account tinkoff reports, parallelism {}", parallelism);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism,
+                1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "tinkoff-statements");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Bean
+    public TinkoffReportPrefetcher tinkoffReportPrefetcher(
+            @Value("${tinkoff.prefetch.depth:2}") int depth,
+            @Value("${tinkoff.prefetch.memory-budget:33554432}") long memoryBudget) {
+        log.info("Create read-ahead of tinkoff reports, depth {}, memory budget {} bytes", depth, memoryBudget);
+        return new TinkoffReportPrefetcher(depth, memoryBudget);
     }
 
+    @Bean
+    public TinkoffWatermarks tinkoffWatermarks(
+            @Value("${tinkoff.watermarks.path:}") String watermarksPath,
+            @Value("${tinkoff.watermarks.margin-days:10}") int marginDays,
+            @Value("${tinkoff.watermarks.skip:false}") boolean skipEnabled) {
+        log.info("Create watermarks of tinkoff operations, file: {}, margin {} days, skip rows: {}",
+                watermarksPath.isEmpty() ? "none" : watermarksPath, marginDays, skipEnabled);
+        return new TinkoffWatermarks(watermarksPath.isEmpty() ? null : new File(watermarksPath),
+                Duration.ofDays(marginDays), skipEnabled);
+    }
+
+    @Bean(destroyMethod = "close")
+    public AdaptiveConcurrencyLimiter accountingConcurrencyLimiter(
+            @Value("${tinkoff.accounting.concurrency.initial:4}") int initialLimit,
+            @Value("${tinkoff.accounting.concurrency.min:1}") int minLimit,
+            @Value("${tinkoff.accounting.concurrency.max:64}") int maxLimit,
+            @Value("${tinkoff.accounting.concurrency.tolerance:2.0}") double tolerance,
+            @Value("${tinkoff.accounting.concurrency.backoff:0.9}") double backoff) {
+        log.info("Create concurrency limiter of accounting calls, limit {} within {}..{}", initialLimit, minLimit, maxLimit);
+        return new AdaptiveConcurrencyLimiter("accounting", initialLimit, minLimit, maxLimit, tolerance, backoff);
+    }
+
+    @Bean
+    public TinkoffMonthlyRollups tinkoffMonthlyRollups(@Value("${tinkoff.rollups.path:}") String rollupsPath) {
+        log.info("Create monthly rollups of tinkoff operations, file: {}", rollupsPath.isEmpty() ? "none" : rollupsPath);
+        return new TinkoffMonthlyRollups(rollupsPath.isEmpty() ? null : new File(rollupsPath));
+    }
+
+    @Bean(destroyMethod = "close")
+    @Conditional(OperationLogEnabled.class)
+    public TinkoffOperationLog tinkoffOperationLog(
+            @Value("${tinkoff.reports.path}") String baseDirectoryPath,
+            @Value("${tinkoff.oplog.path:}") String operationLogPath,
+            @Value("${tinkoff.oplog.segment-size:" + TinkoffOperationLog.DEFAULT_SEGMENT_SIZE + "}") int segmentSize) {
+        final File directory = operationLogPath.isEmpty() ?
+                new File(baseDirectoryPath, ".oplog") : new File(operationLogPath);
+        log.info("Create log of tinkoff operations in {}, segment size {}", directory, segmentSize);
+        return new TinkoffOperationLog(directory, segmentSize);
+    }
+
+    @Bean
+    @Conditional(OperationLogEnabled.class)
+    public TinkoffOperationLogListener tinkoffOperationLogListener(TinkoffOperationLog operationLog) {
+        return new TinkoffOperationLogListener(operationLog);
+    }
+
+    /**
+     * The operation log maps segments of {@code tinkoff.oplog.segment-size} bytes, so it is created
+     * only when {@code tinkoff.oplog.enabled} is set
+     */
+    static class OperationLogEnabled implements Condition {
+        @Override
+        public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+            return context.getEnvironment().getProperty("tinkoff.oplog.enabled", Boolean.class, false);
+        }
+    }
 
 }
@@ -0,0 +1,41 @@
+package ru.vzotov.tinkoff;
+
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.aot.hint.TypeReference;
+import ru.vzotov.tinkoff.application.impl.AccountReportServiceTinkoff;
+import ru.vzotov.tinkoff.infrastructure.fs.TinkoffReportRepositoryFiles;
+
+import java.util.stream.Stream;
+
+/**
+ * Hints for the ahead-of-time processing of the module, required to run it as a native image.
+ * <p>
+ * Statements of OFX reports are bound by Jackson with reflection, from the annotations of private records
+ * of the parser, so the records and the date deserializer are registered by name. The service is wired
+ * with package-private constructor and setters.
+ */
+public class TinkoffRuntimeHints implements RuntimeHintsRegistrar {
+
+    private static final String PARSER = TinkoffReportRepositoryFiles.class.getName();
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        Stream.of("$OfxBankAccount", "$Statement", "$OfxCurrency")
+                .map(name -> TypeReference.of(PARSER + name))
+                .forEach(type -> hints.reflection().registerType(type,
+                        MemberCategory.INVOKE_DECLARED_CONSTRUCTORS,
+                        MemberCategory.INVOKE_DECLARED_METHODS,
+                        MemberCategory.DECLARED_FIELDS));
+        hints.reflection().registerType(TypeReference.of(PARSER + "$OfxDateSerializer"),
+                MemberCategory.INVOKE_DECLARED_CONSTRUCTORS);
+
+        hints.reflection().registerType(AccountReportServiceTinkoff.class,
+                MemberCategory.INVOKE_DECLARED_CONSTRUCTORS,
+                MemberCategory.INVOKE_DECLARED_METHODS);
+        hints.reflection().registerType(TinkoffModule.class,
+                MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS,
+                MemberCategory.INVOKE_PUBLIC_METHODS);
+    }
+}
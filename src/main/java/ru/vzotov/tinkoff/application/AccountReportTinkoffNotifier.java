@@ -1,24 +1,88 @@
 package ru.vzotov.tinkoff.application;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import ru.vzotov.accounting.application.AccountReportService;
 
+import java.util.function.LongSupplier;
+
+/**
+ * Adaptive scanner of new reports.
+ * <p>
+ * While there is a backlog of reports the scanner hands new reports of idle inboxes to the scheduler every tick.
+ * When all inboxes are idle the pause between scans doubles from {@link #MIN_DELAY} up to {@link #MAX_DELAY}.
+ * Failed reports waiting for their retry do not count as a backlog, so they do not keep the scanner busy.
+ * Without the scheduler all pending reports of the service are processed every {@link #MAX_DELAY}.
+ */
 @Component
 public class AccountReportTinkoffNotifier {
 
-    private static final long TEN_MINUTES = 10 * 60 * 1000;
+    private static final Logger log = LoggerFactory.getLogger(AccountReportTinkoffNotifier.class);
+
+    private static final long TICK = 5 * 1000;
+
+    private static final long MIN_DELAY = 30 * 1000;
+
+    private static final long MAX_DELAY = 10 * 60 * 1000;
 
     private final AccountReportService accountReportService;
 
+    private final LongSupplier clock;
+
+    private TinkoffReportScheduler reportScheduler;
+
+    private long delay = MIN_DELAY;
+
+    private long nextScan;
+
+    private long completed;
+
+    @Autowired
     public AccountReportTinkoffNotifier(
             @Qualifier("AccountReportServiceTinkoff") AccountReportService accountReportService) {
+        this(accountReportService, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock current time in milliseconds
+     */
+    AccountReportTinkoffNotifier(AccountReportService accountReportService, LongSupplier clock) {
         this.accountReportService = accountReportService;
+        this.clock = clock;
+    }
+
+    @Autowired(required = false)
+    void setReportScheduler(TinkoffReportScheduler reportScheduler) {
+        this.reportScheduler = reportScheduler;
     }
 
-    @Scheduled(initialDelay = 30 * 1000, fixedDelay = TEN_MINUTES)
+    @Scheduled(initialDelay = 30 * 1000, fixedDelay = TICK)
     public void searchNewReports() {
-        accountReportService.processNewReports();
+        final long now = clock.getAsLong();
+        if (now < nextScan) {
+            return;
+        }
+
+        if (reportScheduler == null) {
+            accountReportService.processNewReports();
+            nextScan = clock.getAsLong() + MAX_DELAY;
+            return;
+        }
+
+        final int pending = reportScheduler.schedulePendingReports();
+        if (pending > 0) {
+            // reports are processed, scan idle inboxes again on the next tick
+            return;
+        }
+
+        final long processed = reportScheduler.completed() - completed;
+        completed += processed;
+        delay = processed > 0 ? MIN_DELAY : Math.min(delay * 2, MAX_DELAY);
+        nextScan = clock.getAsLong() + delay;
+        log.debug("Processed {} reports, next scan in {} ms", processed, delay);
     }
 }
@@ -0,0 +1,17 @@
+package ru.vzotov.tinkoff.application;
+
+import java.time.YearMonth;
+
+/**
+ * Totals of settled operations of a card or an account for a month, category and MCC
+ *
+ * @param owner    card mask or account number, empty if neither is known
+ * @param month    month of operations
+ * @param category category of operations, may be null
+ * @param mcc      merchant category code, may be null
+ * @param currency currency of operations
+ * @param summary  totals of operations
+ */
+public record TinkoffMonthlyRollup(String owner, YearMonth month, String category, String mcc, String currency,
+                                   TinkoffOperationSummary summary) {
+}
@@ -0,0 +1,29 @@
+package ru.vzotov.tinkoff.application;
+
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.util.function.Function;
+
+/**
+ * Groupings of Tinkoff operations for aggregation
+ */
+public enum TinkoffOperationGrouping {
+    CARD(TinkoffOperation::cardNumber),
+    MCC(TinkoffOperation::mcc),
+    CATEGORY(TinkoffOperation::category),
+    CURRENCY(TinkoffOperation::operationCurrency);
+
+    private final Function<TinkoffOperation, String> key;
+
+    TinkoffOperationGrouping(Function<TinkoffOperation, String> key) {
+        this.key = key;
+    }
+
+    /**
+     * @param operation operation
+     * @return key of the group of the operation, may be null
+     */
+    public String keyOf(TinkoffOperation operation) {
+        return key.apply(operation);
+    }
+}
@@ -0,0 +1,51 @@
+package ru.vzotov.tinkoff.application;
+
+import org.apache.commons.lang3.Validate;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.time.LocalDate;
+
+/**
+ * Query of Tinkoff operations. Null criteria match any operation.
+ *
+ * @param from       first date of operations, inclusive
+ * @param to         last date of operations, inclusive
+ * @param cardNumber card mask, e.g. {@code *1234}
+ * @param mcc        merchant category code
+ * @param category   category of operations
+ */
+public record TinkoffOperationQuery(LocalDate from, LocalDate to, String cardNumber, String mcc, String category) {
+
+    public TinkoffOperationQuery {
+        Validate.isTrue(from == null || to == null || !from.isAfter(to), "Invalid date range %s - %s", from, to);
+    }
+
+    public static TinkoffOperationQuery all() {
+        return new TinkoffOperationQuery(null, null, null, null, null);
+    }
+
+    public static TinkoffOperationQuery between(LocalDate from, LocalDate to) {
+        return new TinkoffOperationQuery(from, to, null, null, null);
+    }
+
+    public TinkoffOperationQuery withCard(String cardNumber) {
+        return new TinkoffOperationQuery(from, to, cardNumber, mcc, category);
+    }
+
+    public TinkoffOperationQuery withMcc(String mcc) {
+        return new TinkoffOperationQuery(from, to, cardNumber, mcc, category);
+    }
+
+    public TinkoffOperationQuery withCategory(String category) {
+        return new TinkoffOperationQuery(from, to, cardNumber, mcc, category);
+    }
+
+    public boolean matches(TinkoffOperation operation) {
+        final LocalDate date = operation.operationDate().toLocalDate();
+        return (from == null || !date.isBefore(from)) &&
+                (to == null || !date.isAfter(to)) &&
+                (cardNumber == null || cardNumber.equals(operation.cardNumber())) &&
+                (mcc == null || mcc.equals(operation.mcc())) &&
+                (category == null || category.equals(operation.category()));
+    }
+}
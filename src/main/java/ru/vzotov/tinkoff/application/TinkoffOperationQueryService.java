@@ -0,0 +1,32 @@
+package ru.vzotov.tinkoff.application;
+
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queries over imported Tinkoff operations which do not read report files
+ */
+public interface TinkoffOperationQueryService {
+
+    /**
+     * @param query query
+     * @return matching operations ordered by operation date
+     */
+    List<TinkoffOperation> find(TinkoffOperationQuery query);
+
+    /**
+     * @param query query
+     * @return totals of matching operations
+     */
+    TinkoffOperationSummary summarize(TinkoffOperationQuery query);
+
+    /**
+     * @param query    query
+     * @param grouping grouping of operations
+     * @return totals of matching operations by group, operations without a group key are skipped
+     */
+    Map<String, TinkoffOperationSummary> summarize(TinkoffOperationQuery query, TinkoffOperationGrouping grouping);
+
+}
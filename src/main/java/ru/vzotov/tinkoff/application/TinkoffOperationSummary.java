@@ -0,0 +1,38 @@
+package ru.vzotov.tinkoff.application;
+
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+/**
+ * Totals of Tinkoff operations in minor units (kopecks).
+ * Amounts are summed in the currency of the operation, group operations by currency if the currencies differ.
+ *
+ * @param count    number of operations
+ * @param amount   sum of operation amounts
+ * @param cashBack sum of cashback
+ * @param bonus    sum of bonuses
+ */
+public record TinkoffOperationSummary(long count, long amount, long cashBack, long bonus) {
+
+    public static final TinkoffOperationSummary EMPTY = new TinkoffOperationSummary(0, 0, 0, 0);
+
+    public static TinkoffOperationSummary of(TinkoffOperation operation) {
+        return new TinkoffOperationSummary(1,
+                minorUnits(operation.operationAmount()),
+                minorUnits(operation.cashBack()),
+                minorUnits(operation.bonus()));
+    }
+
+    public TinkoffOperationSummary plus(TinkoffOperationSummary other) {
+        return new TinkoffOperationSummary(count + other.count, amount + other.amount,
+                cashBack + other.cashBack, bonus + other.bonus);
+    }
+
+    public TinkoffOperationSummary minus(TinkoffOperationSummary other) {
+        return new TinkoffOperationSummary(count - other.count, amount - other.amount,
+                cashBack - other.cashBack, bonus - other.bonus);
+    }
+
+    static long minorUnits(Double value) {
+        return value == null ? 0L : Math.round(value * 100d);
+    }
+}
@@ -0,0 +1,44 @@
+package ru.vzotov.tinkoff.application;
+
+import ru.vzotov.banking.domain.model.AccountNumber;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Result of reconciliation of report rows with operations registered for the same account and date window
+ *
+ * @param account    account
+ * @param from       first date of the window
+ * @param to         last date of the window
+ * @param matched    number of rows matching registered operations
+ * @param missing    rows of the report not registered in the accounting
+ * @param extra      registered operations absent in the report
+ * @param mismatched rows registered with the same reference but a different date, amount or currency
+ */
+public record TinkoffReconciliation(AccountNumber account, LocalDate from, LocalDate to, int matched,
+                                    List<TinkoffOperation> missing,
+                                    List<TinkoffRegisteredOperation> extra,
+                                    List<Mismatch> mismatched) {
+
+    public TinkoffReconciliation {
+        missing = List.copyOf(missing);
+        extra = List.copyOf(extra);
+        mismatched = List.copyOf(mismatched);
+    }
+
+    /**
+     * @return true if every row of the report matches a registered operation and vice versa
+     */
+    public boolean isReconciled() {
+        return missing.isEmpty() && extra.isEmpty() && mismatched.isEmpty();
+    }
+
+    /**
+     * @param operation  row of the report
+     * @param registered operation registered for the row
+     */
+    public record Mismatch(TinkoffOperation operation, TinkoffRegisteredOperation registered) {
+    }
+}
@@ -0,0 +1,24 @@
+package ru.vzotov.tinkoff.application;
+
+import org.apache.commons.lang3.Validate;
+
+import java.time.LocalDate;
+
+/**
+ * Operation already registered in the accounting, as seen by reconciliation
+ *
+ * @param reference   transaction reference of the operation
+ * @param date        date of the operation
+ * @param amount      amount in minor units (kopecks), negative for withdrawals
+ * @param currency    currency code of the amount
+ * @param description description of the operation
+ */
+public record TinkoffRegisteredOperation(String reference, LocalDate date, long amount, String currency,
+                                         String description) {
+
+    public TinkoffRegisteredOperation {
+        Validate.notNull(reference);
+        Validate.notNull(date);
+        Validate.notNull(currency);
+    }
+}
@@ -0,0 +1,21 @@
+package ru.vzotov.tinkoff.application;
+
+import ru.vzotov.banking.domain.model.AccountNumber;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Source of operations registered in the accounting, used to reconcile reports.
+ * Implementations are expected to fetch the whole window at once.
+ */
+public interface TinkoffRegisteredOperations {
+
+    /**
+     * @param account account of operations
+     * @param from    first date of the window, inclusive
+     * @param to      last date of the window, inclusive
+     * @return operations of the account registered within the window, holds are not included
+     */
+    List<TinkoffRegisteredOperation> find(AccountNumber account, LocalDate from, LocalDate to);
+}
@@ -0,0 +1,22 @@
+package ru.vzotov.tinkoff.application;
+
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.util.List;
+
+/**
+ * Listener of processed Tinkoff reports
+ */
+public interface TinkoffReportListener {
+
+    /**
+     * Called after all operations of the report are registered and the report is marked as processed.
+     * Operations of a large report may be passed in several calls.
+     *
+     * @param reportId   id of the report
+     * @param operations operations of the report
+     */
+    void reportProcessed(AccountReportId reportId, List<TinkoffOperation> operations);
+
+}
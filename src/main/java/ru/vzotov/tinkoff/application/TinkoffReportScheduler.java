@@ -0,0 +1,20 @@
+package ru.vzotov.tinkoff.application;
+
+/**
+ * Scheduler processing pending Tinkoff reports in the background
+ */
+public interface TinkoffReportScheduler {
+
+    /**
+     * Finds pending reports and dispatches them for processing
+     *
+     * @return number of reports waiting for processing or being processed
+     */
+    int schedulePendingReports();
+
+    /**
+     * @return number of reports processed since the start
+     */
+    long completed();
+
+}
@@ -7,6 +7,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import org.springframework.util.DigestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import ru.vzotov.accounting.application.AccountNotFoundException;
 import ru.vzotov.accounting.application.AccountReportNotFoundException;
 import ru.vzotov.accounting.application.AccountReportService;
@@ -25,19 +28,43 @@ import ru.vzotov.banking.domain.model.OperationId;
 import ru.vzotov.banking.domain.model.OperationType;
 import ru.vzotov.banking.domain.model.TransactionReference;
 import ru.vzotov.domain.model.Money;
+import ru.vzotov.tinkoff.application.TinkoffReconciliation;
+import ru.vzotov.tinkoff.application.TinkoffRegisteredOperations;
+import ru.vzotov.tinkoff.application.TinkoffReportListener;
 import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportRepository;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportUpload;
+import ru.vzotov.tinkoff.domain.model.TinkoffRowFilter;
+import ru.vzotov.tinkoff.infrastructure.fs.TinkoffOperationLog;
+import ru.vzotov.tinkoff.infrastructure.jfr.ReportStage;
+import ru.vzotov.tinkoff.infrastructure.jfr.ReportStageEvent;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Currency;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
 
 import static ru.vzotov.banking.domain.model.OperationType.DEPOSIT;
 import static ru.vzotov.banking.domain.model.OperationType.WITHDRAW;
+import static ru.vzotov.tinkoff.infrastructure.jfr.ReportStage.ACCOUNT_RESOLUTION;
+import static ru.vzotov.tinkoff.infrastructure.jfr.ReportStage.CARD_RESOLUTION;
+import static ru.vzotov.tinkoff.infrastructure.jfr.ReportStage.MARK_PROCESSED;
+import static ru.vzotov.tinkoff.infrastructure.jfr.ReportStage.REGISTER_CARD_OPERATION;
+import static ru.vzotov.tinkoff.infrastructure.jfr.ReportStage.REGISTER_HOLD_OPERATION;
+import static ru.vzotov.tinkoff.infrastructure.jfr.ReportStage.REGISTER_OPERATION;
+import static ru.vzotov.tinkoff.infrastructure.jfr.ReportStage.REMOVE_MATCHING_HOLD_OPERATIONS;
 
 @Service
 @Qualifier("AccountReportServiceTinkoff")
@@ -45,6 +72,13 @@ public class AccountReportServiceTinkoff implements AccountReportService {
 
     private static final Logger log = LoggerFactory.getLogger(AccountReportServiceTinkoff.class);
 
+    private static final int REGISTRATION_BATCH_SIZE = 64;
+
+    /**
+     * Parsed operations take about twice the size of the decoded report, as their text is kept in UTF-16 strings
+     */
+    private static final long PARSED_SIZE_FACTOR = 2;
+
     private final AccountReportRepository<TinkoffOperation> accountReportRepository;
 
     private final AccountingService accountingService;
@@ -53,6 +87,28 @@ public class AccountReportServiceTinkoff implements AccountReportService {
 
     private final CardRepository cardRepository;
 
+    /**
+     * Guarantees that at most one scan of unprocessed reports is in flight.
+     * A semaphore has no owner thread, so reactive processing may release it on another thread.
+     */
+    private final Semaphore scanLock = new Semaphore(1);
+
+    private List<TinkoffReportListener> listeners = List.of();
+
+    private AdaptiveConcurrencyLimiter limiter;
+
+    private TinkoffReportPrefetcher prefetcher;
+
+    private TinkoffRegisteredOperations registeredOperations;
+
+    private TinkoffRowFilter rowFilter = TinkoffRowFilter.NONE;
+
+    /**
+     * Workers registering statements of multi-account reports, shared by all inboxes.
+     * Without workers statements are registered one by one.
+     */
+    private ExecutorService statementExecutor;
+
     AccountReportServiceTinkoff(
             @Autowired @Qualifier("accountReportRepositoryTinkoff") AccountReportRepository<TinkoffOperation> accountReportRepository,
             @Autowired AccountingService accountingService,
@@ -65,6 +121,65 @@ public class AccountReportServiceTinkoff implements AccountReportService {
         this.cardRepository = cardRepository;
     }
 
+    @Autowired(required = false)
+    void setRegisteredOperations(TinkoffRegisteredOperations registeredOperations) {
+        this.registeredOperations = registeredOperations;
+    }
+
+    @Autowired(required = false)
+    void setRowFilter(TinkoffRowFilter rowFilter) {
+        this.rowFilter = rowFilter;
+    }
+
+    @Autowired(required = false)
+    void setLimiter(AdaptiveConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    @Autowired(required = false)
+    void setPrefetcher(TinkoffReportPrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    @Autowired(required = false)
+    void setStatementExecutor(@Qualifier("tinkoffStatementExecutor") ExecutorService statementExecutor) {
+        this.statementExecutor = statementExecutor;
+    }
+
+    @Autowired(required = false)
+    void setListeners(List<TinkoffReportListener> listeners) {
+        this.listeners = List.copyOf(listeners);
+    }
+
+    /**
+     * Creates the service of another inbox of reports, sharing the accounting, the limiter, the read-ahead
+     * and the statement workers of this service. Listeners and the row filter are own for each inbox, so watermarks and rollups
+     * of different inboxes are not mixed. The service of the own inbox is this service.
+     *
+     * @param accountReportRepository repository of reports of the inbox
+     * @param listeners               listeners of reports of the inbox
+     * @param rowFilter               filter of rows of reports of the inbox
+     * @return service of the inbox
+     */
+    AccountReportServiceTinkoff forInbox(AccountReportRepository<TinkoffOperation> accountReportRepository,
+                                         List<TinkoffReportListener> listeners, TinkoffRowFilter rowFilter) {
+        Validate.notNull(accountReportRepository);
+        Validate.notNull(listeners);
+        Validate.notNull(rowFilter);
+        if (accountReportRepository == this.accountReportRepository) {
+            return this;
+        }
+        final AccountReportServiceTinkoff service = new AccountReportServiceTinkoff(
+                accountReportRepository, accountingService, accountRepository, cardRepository);
+        service.listeners = List.copyOf(listeners);
+        service.limiter = limiter;
+        service.prefetcher = prefetcher;
+        service.statementExecutor = statementExecutor;
+        service.registeredOperations = registeredOperations;
+        service.rowFilter = rowFilter;
+        return service;
+    }
+
     @Override
     public BankId bankId() {
         return BankId.TINKOFF;
@@ -77,6 +192,26 @@ public class AccountReportServiceTinkoff implements AccountReportService {
         return accountReportRepository.save(name, content);
     }
 
+    /**
+     * Saves the report parsing it while it is written, so the client gets validation errors immediately
+     * and the report can be processed without reading it back from the storage.
+     *
+     * @param name    name of the report
+     * @param content content of the report
+     * @return saved and parsed report
+     * @throws IOException              if the report can not be saved
+     * @throws IllegalArgumentException if the report is invalid
+     */
+    public TinkoffReportUpload saveAndParse(String name, InputStream content) throws IOException {
+        Validate.notNull(name);
+        Validate.notNull(content);
+        if (accountReportRepository instanceof TinkoffReportRepository repository) {
+            return repository.saveAndParse(name, content);
+        }
+        final AccountReportId reportId = accountReportRepository.save(name, content);
+        return new TinkoffReportUpload(reportId, accountReportRepository.find(reportId));
+    }
+
     private Card suggestCard(final Map<String, Card> context, final String cardNumber) throws IllegalCardNumberException {
         Card card = null;
         if (cardNumber != null && !cardNumber.isEmpty()) {
@@ -104,109 +239,560 @@ public class AccountReportServiceTinkoff implements AccountReportService {
     public void processAccountReport(AccountReportId reportId) throws AccountReportNotFoundException, AccountNotFoundException {
         Validate.notNull(reportId);
 
-        final AccountReport<TinkoffOperation> report = accountReportRepository.find(reportId);
+        final AccountReport<TinkoffOperation> report = findReport(reportId);
         if (report == null) {
             throw new AccountReportNotFoundException();
         }
 
-        // Index of cards by their card number in report
-        final Map<String, Card> cards = new HashMap<>();
+        if (!processAccountReport(reportId, report)) {
+            log.warn("Processing of report {} stopped before its end", reportId);
+        }
+    }
 
+    private AccountReport<TinkoffOperation> findReport(AccountReportId reportId) {
+        return accountReportRepository instanceof TinkoffReportRepository repository ?
+                repository.find(reportId, rowFilter) : accountReportRepository.find(reportId);
+    }
+
+    /**
+     * Processes the report parsed on upload
+     *
+     * @param upload uploaded report
+     */
+    public void processAccountReport(TinkoffReportUpload upload) throws AccountNotFoundException {
+        Validate.notNull(upload);
+        // the uploaded report is in the inbox, so a scan may pick it up as well
+        scanLock.acquireUninterruptibly();
         try {
-            for (TinkoffOperation row : report.operations()) {
-                final OperationType type = row.operationAmount() < 0d ? WITHDRAW : DEPOSIT;
+            if (!isUnprocessed(upload.reportId())) {
+                log.info("Report {} is already processed", upload.reportId());
+                return;
+            }
+            if (!processAccountReport(upload.reportId(), withoutSkippedRows(upload.reportId(), upload.report()))) {
+                log.warn("Processing of report {} stopped before its end", upload.reportId());
+            }
+        } finally {
+            scanLock.release();
+        }
+    }
 
-                Card card = suggestCard(cards, row.cardNumber());
+    private boolean isUnprocessed(AccountReportId reportId) {
+        return accountReportRepository instanceof TinkoffReportRepository repository ?
+                repository.isUnprocessed(reportId) : accountReportRepository.findUnprocessed().contains(reportId);
+    }
 
-                final Currency currency = Currency.getInstance(row.operationCurrency());
+    /**
+     * Filters rows of the report parsed before the row filter was last updated
+     */
+    private AccountReport<TinkoffOperation> withoutSkippedRows(AccountReportId reportId, AccountReport<TinkoffOperation> report) {
+        final List<TinkoffOperation> operations = report.operations();
+        final List<TinkoffOperation> accepted = operations.stream().filter(row -> !rowFilter.skip(row)).toList();
+        if (accepted.size() < operations.size()) {
+            log.info("Skipped {} rows of report {} below watermarks", operations.size() - accepted.size(), reportId);
+        }
+        return new AccountReport<>(reportId, accepted);
+    }
+
+    /**
+     * Processes operations of the report as they are read, under the scan lock.
+     * Operations are registered in batches, and the next batch is requested only when the previous one
+     * is registered, so a slow accounting throttles reading of the report instead of filling the heap.
+     * When all operations are registered, the report is marked as processed and the operations are read
+     * once more to notify listeners in batches, so the report is never held in memory at once.
+     * Both passes skip the same rows, by the row filter as it was when processing started.
+     *
+     * @param reportId   id of the report
+     * @param operations operations of the report, read again on each subscription,
+     *                   e.g. {@link ru.vzotov.tinkoff.infrastructure.fs.ReactiveTinkoffReportRepository#find}
+     * @return true if the report is processed, false if registration of its operations stopped;
+     * fails with {@link AccountNotFoundException} if the accounting does not find the account of an operation
+     */
+    public Mono<Boolean> processAccountReport(AccountReportId reportId, Flux<TinkoffOperation> operations) {
+        Validate.notNull(reportId);
+        Validate.notNull(operations);
+        return Mono.using(() -> {
+                    scanLock.acquireUninterruptibly();
+                    return rowFilter.snapshot();
+                }, filter -> {
+                    final Flux<TinkoffOperation> accepted = operations.filter(row -> !filter.skip(row));
+                    // Index of cards by their card number in report
+                    final Map<String, Card> cards = new HashMap<>();
+                    return accepted
+                            .buffer(REGISTRATION_BATCH_SIZE)
+                            .concatMap(batch -> Mono.fromCallable(() -> registerOperations(reportId, batch, cards)), 1)
+                            .all(Boolean::booleanValue)
+                            .flatMap(complete -> complete ?
+                                    Mono.fromRunnable(() -> markProcessed(reportId))
+                                            .thenMany(accepted.buffer(REGISTRATION_BATCH_SIZE))
+                                            .concatMap(batch -> Mono.fromRunnable(() -> notifyListeners(reportId, batch)), 1)
+                                            .then(Mono.just(true)) :
+                                    Mono.just(false));
+                }, filter -> scanLock.release())
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Registers operations of the operation log in the accounting, e.g. to rebuild the accounting
+     * after its storage is lost. Reports are not marked as processed and listeners are not notified.
+     *
+     * @param operationLog log of parsed operations
+     */
+    public void replayOperationLog(TinkoffOperationLog operationLog) {
+        Validate.notNull(operationLog);
+        operationLog.replay((reportId, operations) -> {
+            try {
+                if (!registerOperations(reportId, operations, new HashMap<>())) {
+                    log.warn("Replay of report {} stopped before its end", reportId);
+                }
+            } catch (AccountNotFoundException e) {
+                log.warn("Replay failed for report {}", reportId);
+            }
+        });
+    }
+
+    /**
+     * @return true if all operations are registered and the report is marked as processed
+     */
+    private boolean processAccountReport(AccountReportId reportId, AccountReport<TinkoffOperation> report)
+            throws AccountNotFoundException {
+        final Map<AccountNumber, List<TinkoffOperation>> statements = statementsOf(report.operations());
+        final boolean complete = statements.size() > 1 ?
+                registerStatements(reportId, statements) :
+                registerOperations(reportId, report.operations(), new HashMap<>());
+        if (complete) {
+            reportProcessed(reportId, report.operations());
+        }
+        return complete;
+    }
+
+    /**
+     * Splits operations of a report by accounts, keeping the order of operations of each account
+     *
+     * @return operations by accounts, empty if some operations are not bound to an account, e.g. card operations
+     */
+    private static Map<AccountNumber, List<TinkoffOperation>> statementsOf(List<TinkoffOperation> operations) {
+        final Map<AccountNumber, List<TinkoffOperation>> statements = new LinkedHashMap<>();
+        for (TinkoffOperation operation : operations) {
+            if (operation.accountNumber() == null || operation.cardNumber() != null) {
+                return Map.of();
+            }
+            statements.computeIfAbsent(operation.accountNumber(), account -> new ArrayList<>()).add(operation);
+        }
+        return statements;
+    }
+
+    /**
+     * Registers statements of different accounts in parallel on the statement workers, if any.
+     * Operations of an account do not depend on operations of other accounts, so only the order
+     * of operations within a statement is kept, e.g. a hold is registered before the operation removing it.
+     * Accounts of all statements are resolved first, so no statement is registered when one of them is missing.
+     *
+     * @return true if operations of all statements are registered
+     */
+    private boolean registerStatements(AccountReportId reportId, Map<AccountNumber, List<TinkoffOperation>> statements)
+            throws AccountNotFoundException {
+        for (AccountNumber accountNumber : statements.keySet()) {
+            if (accountRepository.find(accountNumber) == null) {
+                log.error("Unable to find account {} of report {}, no statements are registered", accountNumber, reportId);
+                return false;
+            }
+        }
+
+        if (statementExecutor == null) {
+            for (List<TinkoffOperation> statement : statements.values()) {
+                if (!registerOperations(reportId, statement, new HashMap<>())) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-                final Account account;
-                if (card == null) {
-                    if (row.accountNumber() != null) {
-                        account = accountRepository.find(row.accountNumber());
+        log.info("Register {} statements of report {} in parallel", statements.size(), reportId);
+        final List<Future<Boolean>> futures = new ArrayList<>(statements.size());
+        try {
+            for (List<TinkoffOperation> statement : statements.values()) {
+                futures.add(statementExecutor.submit(() -> registerOperations(reportId, statement, new HashMap<>())));
+            }
+            boolean complete = true;
+            AccountNotFoundException accountNotFound = null;
+            for (Future<Boolean> future : futures) {
+                try {
+                    complete &= future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof AccountNotFoundException cause) {
+                        accountNotFound = cause;
+                    } else if (e.getCause() instanceof RuntimeException cause) {
+                        throw cause;
                     } else {
-                        account = accountRepository.find(BankId.TINKOFF, currency).stream()
-                                .min(Comparator.comparing(a -> a.accountNumber().number()))
-                                .orElse(null);
-                    }
-                    if (account == null) {
-                        log.error("Unable to find account for tinkoff and currency {}", currency);
-                        return;
-                    }
-                } else {
-                    account = accountRepository.findAccountOfCard(card.cardNumber(), row.operationDate().toLocalDate());
-                    if (account == null) {
-                        log.error("Unable to find account for card {} and date {}", card.cardNumber(), row.operationDate());
-                        return;
+                        throw new IllegalStateException("Unable to register operations of report " + reportId, e.getCause());
                     }
                 }
+            }
+            if (accountNotFound != null) {
+                throw accountNotFound;
+            }
+            return complete;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Registration of report " + reportId + " is interrupted", e);
+        } finally {
+            // statements not started when registration fails are not registered. Statements being registered
+            // are not interrupted: they run to their end, so no row is left between its registration and
+            // the removal of its matching holds, and the report stays unprocessed to be registered again
+            futures.forEach(future -> future.cancel(false));
+        }
+    }
+
+    void reportProcessed(AccountReportId reportId, List<TinkoffOperation> operations) {
+        markProcessed(reportId);
+        notifyListeners(reportId, operations);
+    }
+
+    void markProcessed(AccountReportId reportId) {
+        stage(reportId, MARK_PROCESSED, () -> {
+            accountReportRepository.markProcessed(reportId);
+            return null;
+        });
+    }
+
+    /**
+     * Passes operations of the processed report to listeners, at once or in several parts
+     */
+    void notifyListeners(AccountReportId reportId, List<TinkoffOperation> operations) {
+        for (TinkoffReportListener listener : listeners) {
+            listener.reportProcessed(reportId, operations);
+        }
+    }
+
+    /**
+     * @param cards index of cards by their card number in report
+     * @return true if all operations are registered
+     */
+    boolean registerOperations(AccountReportId reportId, List<TinkoffOperation> operations, Map<String, Card> cards)
+            throws AccountNotFoundException {
+        try {
+            for (TinkoffOperation row : operations) {
+                final OperationType type = row.operationAmount() < 0d ? WITHDRAW : DEPOSIT;
+
+                final Card card = stage(reportId, CARD_RESOLUTION, () -> suggestCard(cards, row.cardNumber()));
+
+                final Currency currency = Currency.getInstance(row.operationCurrency());
+
+                final ReportStageEvent accountEvent = ReportStageEvent.begin(reportId, ACCOUNT_RESOLUTION);
+                Account account = null;
+                try {
+                    account = accountOf(row, card, currency);
+                } finally {
+                    accountEvent.finish(account != null);
+                }
+                if (account == null) {
+                    return false;
+                }
 
                 final AccountNumber accountNumber = account.accountNumber();
                 final Money amount = new Money(Math.abs(row.operationAmount()), currency);
 
                 if (row.isHold()) { // Handle hold records
-                    accountingService.registerHoldOperation(
-                            accountNumber,
-                            row.operationDate().toLocalDate(),
-                            type,
-                            amount,
-                            row.description()
-                    );
-                } else {
-                    final String transactionId = DigestUtils.md5DigestAsHex(
-                            (row.operationDate().toString() + "_" + row.cardNumber() + "_" + row.operationAmount())
-                                    .getBytes(StandardCharsets.UTF_8)
-                    );
-
-                    OperationId operationId = accountingService.registerOperation(
-                            accountNumber,
-                            row.paymentDate(),
-                            new TransactionReference(transactionId),
-                            type,
-                            amount,
-                            row.description()
-                    );
-
-                    if (row.isCardOperation() && card != null) {
-                        accountingService.registerCardOperation(
-                                operationId,
-                                card.cardNumber(),
-                                null,
-                                row.paymentDate(),
+                    stage(reportId, REGISTER_HOLD_OPERATION, () -> limited(REGISTER_HOLD_OPERATION, () -> {
+                        accountingService.registerHoldOperation(
+                                accountNumber,
                                 row.operationDate().toLocalDate(),
+                                type,
                                 amount,
-                                null,
-                                new MccCode(row.mcc())
+                                row.description()
                         );
+                        return null;
+                    }));
+                } else {
+                    final String transactionId = transactionReferenceOf(row);
+
+                    final OperationId operationId = stage(reportId, REGISTER_OPERATION, () -> limited(REGISTER_OPERATION, () ->
+                            accountingService.registerOperation(
+                                    accountNumber,
+                                    row.paymentDate(),
+                                    new TransactionReference(transactionId),
+                                    type,
+                                    amount,
+                                    row.description()
+                            )));
+
+                    if (row.isCardOperation() && card != null) {
+                        stage(reportId, REGISTER_CARD_OPERATION, () -> limited(REGISTER_CARD_OPERATION, () -> {
+                            accountingService.registerCardOperation(
+                                    operationId,
+                                    card.cardNumber(),
+                                    null,
+                                    row.paymentDate(),
+                                    row.operationDate().toLocalDate(),
+                                    amount,
+                                    null,
+                                    new MccCode(row.mcc())
+                            );
+                            return null;
+                        }));
                     }
 
-                    accountingService.removeMatchingHoldOperations(operationId);
+                    stage(reportId, REMOVE_MATCHING_HOLD_OPERATIONS, () -> limited(REMOVE_MATCHING_HOLD_OPERATIONS, () -> {
+                        accountingService.removeMatchingHoldOperations(operationId);
+                        return null;
+                    }));
                 }
             }
-
-            accountReportRepository.markProcessed(reportId);
+            return true;
         } catch (IllegalCardNumberException e) {
             log.error(e.getMessage());
+            return false;
         }
     }
 
+    /**
+     * @return account of the row, null if the account can not be found
+     */
+    private Account accountOf(TinkoffOperation row, Card card, Currency currency) {
+        if (card == null) {
+            final Account account;
+            if (row.accountNumber() != null) {
+                account = accountRepository.find(row.accountNumber());
+            } else {
+                account = accountRepository.find(BankId.TINKOFF, currency).stream()
+                        .min(Comparator.comparing(a -> a.accountNumber().number()))
+                        .orElse(null);
+            }
+            if (account == null) {
+                log.error("Unable to find account for tinkoff and currency {}", currency);
+            }
+            return account;
+        } else {
+            final Account account = accountRepository.findAccountOfCard(card.cardNumber(), row.operationDate().toLocalDate());
+            if (account == null) {
+                log.error("Unable to find account for card {} and date {}", card.cardNumber(), row.operationDate());
+            }
+            return account;
+        }
+    }
+
+    /**
+     * Performs the stage of processing of the report, recording its duration and outcome
+     */
+    private static <T, E extends Exception> T stage(AccountReportId reportId, ReportStage stage,
+                                                    AdaptiveConcurrencyLimiter.LimitedCall<T, E> call) throws E {
+        final ReportStageEvent event = ReportStageEvent.begin(reportId, stage);
+        boolean succeeded = false;
+        try {
+            final T result = call.call();
+            succeeded = true;
+            return result;
+        } finally {
+            event.finish(succeeded);
+        }
+    }
+
+    /**
+     * Performs the call to the accounting service under the concurrency limit, if any
+     */
+    private <T, E extends Exception> T limited(ReportStage stage, AdaptiveConcurrencyLimiter.LimitedCall<T, E> call)
+            throws E {
+        return limiter == null ? call.call() : limiter.call(stage.name(), call);
+    }
+
+    /**
+     * @return transaction reference of the operation registered for the row
+     */
+    static String transactionReferenceOf(TinkoffOperation row) {
+        return DigestUtils.md5DigestAsHex(
+                (row.operationDate().toString() + "_" + row.cardNumber() + "_" + row.operationAmount())
+                        .getBytes(StandardCharsets.UTF_8)
+        );
+    }
+
+    /**
+     * Reconciles rows of the report with operations registered in the accounting.
+     * Rows are grouped by their account, and registered operations of each account are fetched at once
+     * for the dates of its rows. Holds are not reconciled.
+     *
+     * @param reportId id of the report
+     * @return reconciliation of each account of the report
+     * @throws AccountReportNotFoundException if the report is not found
+     * @throws IllegalStateException          if registered operations are not available or an account of a row
+     *                                        can not be resolved
+     */
+    public List<TinkoffReconciliation> reconcile(AccountReportId reportId) throws AccountReportNotFoundException {
+        Validate.notNull(reportId);
+        Validate.validState(registeredOperations != null, "Registered operations are not available");
+
+        final AccountReport<TinkoffOperation> report = accountReportRepository.find(reportId);
+        if (report == null) {
+            throw new AccountReportNotFoundException();
+        }
+
+        record AccountRows(AccountNumber account, List<TinkoffOperation> rows) {
+        }
+        final Map<String, Card> cards = new HashMap<>();
+        final Map<String, AccountRows> rowsByAccount = new LinkedHashMap<>();
+        for (TinkoffOperation row : report.operations()) {
+            if (row.isHold()) {
+                continue;
+            }
+            final Card card;
+            try {
+                card = suggestCard(cards, row.cardNumber());
+            } catch (IllegalCardNumberException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            final Account account = accountOf(row, card, Currency.getInstance(row.operationCurrency()));
+            Validate.validState(account != null, "Unable to resolve account of operation %s", row);
+            rowsByAccount.computeIfAbsent(account.accountNumber().number(),
+                    number -> new AccountRows(account.accountNumber(), new ArrayList<>())).rows().add(row);
+        }
+
+        final List<TinkoffReconciliation> result = new ArrayList<>();
+        for (AccountRows accountRows : rowsByAccount.values()) {
+            final LocalDate from = accountRows.rows().stream().map(TinkoffOperation::paymentDate)
+                    .min(Comparator.naturalOrder()).orElseThrow();
+            final LocalDate to = accountRows.rows().stream().map(TinkoffOperation::paymentDate)
+                    .max(Comparator.naturalOrder()).orElseThrow();
+            final TinkoffReconciliation reconciliation = ReportReconciler.reconcile(accountRows.account(), from, to,
+                    accountRows.rows(), registeredOperations.find(accountRows.account(), from, to));
+            log.info("Reconciled report {} with account {}: {} matched, {} missing, {} extra, {} mismatched",
+                    reportId, accountRows.account().number(), reconciliation.matched(), reconciliation.missing().size(),
+                    reconciliation.extra().size(), reconciliation.mismatched().size());
+            result.add(reconciliation);
+        }
+        return result;
+    }
+
     @Override
     public void processNewReports() {
-        List<AccountReportId> reports = accountReportRepository.findUnprocessed();
+        scanLock.acquireUninterruptibly();
+        try {
+            List<AccountReportId> reports = pendingReports();
 
-        log.info("Found {} unprocessed reports", reports.size());
+            log.info("Found {} unprocessed reports", reports.size());
 
-        for (AccountReportId reportId : reports) {
-            log.info("Start processing of report {}", reportId);
-            try {
-                processAccountReport(reportId);
+            processPendingReports(reports);
+        } finally {
+            scanLock.release();
+        }
+    }
+
+    /**
+     * Runs the task while no scan of unprocessed reports is in flight
+     */
+    <T> T withScanLock(Supplier<T> task) {
+        scanLock.acquireUninterruptibly();
+        try {
+            return task.get();
+        } finally {
+            scanLock.release();
+        }
+    }
+
+    /**
+     * Processes the unprocessed report, unless a scan of unprocessed reports is in flight
+     *
+     * @param reportId id of the report
+     * @return outcome of processing, {@link PendingReportOutcome#BUSY} if a scan is in flight
+     */
+    PendingReportOutcome processPendingReport(AccountReportId reportId) {
+        Validate.notNull(reportId);
+        if (!scanLock.tryAcquire()) {
+            return PendingReportOutcome.BUSY;
+        }
+        try {
+            if (!isUnprocessed(reportId)) {
+                log.info("Report {} is already processed", reportId);
+                return PendingReportOutcome.PROCESSED;
+            }
+            return processPendingReport(reportId, findReport(reportId)) ?
+                    PendingReportOutcome.PROCESSED : PendingReportOutcome.FAILED;
+        } finally {
+            scanLock.release();
+        }
+    }
+
+    /**
+     * @return unprocessed reports ordered by size, so small reports are not stuck behind large ones
+     */
+    List<AccountReportId> pendingReports() {
+        final List<AccountReportId> reports = accountReportRepository.findUnprocessed();
+        if (accountReportRepository instanceof TinkoffReportRepository repository) {
+            record SizedReport(AccountReportId reportId, long size) {
+            }
+            return reports.stream()
+                    .map(reportId -> new SizedReport(reportId, repository.sizeOf(reportId)))
+                    .sorted(Comparator.comparingLong(SizedReport::size))
+                    .map(SizedReport::reportId)
+                    .toList();
+        }
+        return reports;
+    }
+
+    /**
+     * Processes the reports one by one, reading the next reports ahead while the current one is registered.
+     * A report which can not be read does not stop processing of the next ones.
+     */
+    private void processPendingReports(List<AccountReportId> reports) {
+        if (prefetcher == null || !(accountReportRepository instanceof TinkoffReportRepository repository)) {
+            for (AccountReportId reportId : reports) {
+                try {
+                    processPendingReport(reportId, findReport(reportId));
+                } catch (RuntimeException e) {
+                    log.warn("Unable to read report {}", reportId, e);
+                }
+            }
+            return;
+        }
+        try (TinkoffReportPrefetcher.Prefetch<AccountReport<TinkoffOperation>> prefetch = prefetcher.prefetch(reports,
+                reportId -> PARSED_SIZE_FACTOR * repository.decodedSizeOf(reportId), this::findReport)) {
+            for (AccountReportId reportId : reports) {
+                final AccountReport<TinkoffOperation> report;
+                try {
+                    report = prefetch.next();
+                } catch (RuntimeException e) {
+                    log.warn("Unable to read report {}", reportId, e);
+                    continue;
+                }
+                // watermarks may have moved while the report was read ahead
+                processPendingReport(reportId, report == null ? null : withoutSkippedRows(reportId, report));
+            }
+        }
+    }
 
-                log.info("Processing of report {} finished", reportId);
-            } catch (AccountReportNotFoundException | AccountNotFoundException e) {
-                log.warn("Processing failed for report {}", reportId);
+    private boolean processPendingReport(AccountReportId reportId, AccountReport<TinkoffOperation> report) {
+        log.info("Start processing of report {}", reportId);
+        try {
+            if (report == null) {
+                throw new AccountReportNotFoundException();
+            }
+            if (!processAccountReport(reportId, report)) {
+                log.warn("Processing of report {} stopped before its end", reportId);
+                return false;
             }
+
+            log.info("Processing of report {} finished", reportId);
+            return true;
+        } catch (AccountReportNotFoundException | AccountNotFoundException e) {
+            log.warn("Processing failed for report {}", reportId);
+            return false;
         }
+    }
 
+    /**
+     * Outcome of processing of a pending report
+     */
+    enum PendingReportOutcome {
+        /**
+         * The report is processed
+         */
+        PROCESSED,
+        /**
+         * Processing of the report failed
+         */
+        FAILED,
+        /**
+         * The report is not touched, as a scan of unprocessed reports is in flight
+         */
+        BUSY
     }
 
     private static class IllegalCardNumberException extends Exception {
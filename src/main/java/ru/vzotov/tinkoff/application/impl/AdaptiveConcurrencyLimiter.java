@@ -0,0 +1,239 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import jdk.jfr.FlightRecorder;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vzotov.tinkoff.infrastructure.jfr.ConcurrencyLimitEvent;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Limiter of concurrent calls adjusting the limit with AIMD from observed latency and errors.
+ * <p>
+ * The limiter tracks the baseline latency of each type of calls, a slowly rising minimum of observed latencies.
+ * While calls complete within {@code tolerance} times the baseline of their type and the limit is in use,
+ * the limit grows by one per limit of completed calls. A call failed with a runtime exception or slower than
+ * tolerated multiplies the limit by {@code backoff}, at most once per congestion episode: calls started before
+ * the last decrease saw the old limit and do not decrease it again. Callers over the limit wait for a slot.
+ * <p>
+ * The current limit is sampled by the {@code ru.vzotov.tinkoff.ConcurrencyLimit} JFR event, one per type of calls.
+ */
+public class AdaptiveConcurrencyLimiter implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    /**
+     * Relative growth of the baseline latency per call, so the baseline follows a slower service
+     */
+    private static final double BASELINE_DRIFT = 0.001;
+
+    private final String name;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double tolerance;
+
+    private final double backoff;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private final LongSupplier clock;
+
+    private final Runnable sampler;
+
+    /**
+     * Baseline latency by type of calls
+     */
+    private final Map<String, Long> baselines = new HashMap<>();
+
+    private double limit;
+
+    private int inFlight;
+
+    /**
+     * Time of the last decrease of the limit
+     */
+    private long decreasedAt;
+
+    /**
+     * @param name         name of the limiter
+     * @param initialLimit initial limit
+     * @param minLimit     minimum limit
+     * @param maxLimit     maximum limit
+     * @param tolerance    ratio of latency to the baseline treated as overload
+     * @param backoff      ratio the limit is multiplied by on overload
+     */
+    public AdaptiveConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit,
+                                      double tolerance, double backoff) {
+        this(name, initialLimit, minLimit, maxLimit, tolerance, backoff, System::nanoTime);
+    }
+
+    AdaptiveConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit,
+                               double tolerance, double backoff, LongSupplier clock) {
+        Validate.notNull(name);
+        Validate.notNull(clock);
+        Validate.isTrue(minLimit > 0 && minLimit <= maxLimit, "Invalid limits %s..%s", minLimit, maxLimit);
+        Validate.isTrue(initialLimit >= minLimit && initialLimit <= maxLimit, "Invalid initial limit %s", initialLimit);
+        Validate.isTrue(tolerance > 1, "Invalid tolerance %s", tolerance);
+        Validate.isTrue(backoff > 0 && backoff < 1, "Invalid backoff %s", backoff);
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+        this.limit = initialLimit;
+        this.clock = clock;
+        this.decreasedAt = clock.getAsLong();
+        this.sampler = () -> {
+            lock.lock();
+            try {
+                if (baselines.isEmpty()) {
+                    ConcurrencyLimitEvent.emit(name, null, (int) limit, inFlight, 0);
+                }
+                baselines.forEach((type, baseline) ->
+                        ConcurrencyLimitEvent.emit(name, type, (int) limit, inFlight, baseline));
+            } finally {
+                lock.unlock();
+            }
+        };
+        FlightRecorder.addPeriodicEvent(ConcurrencyLimitEvent.class, sampler);
+    }
+
+    /**
+     * Performs the call when the number of calls in flight is below the limit
+     *
+     * @param call call
+     * @return result of the call
+     * @throws E if the call fails
+     */
+    public <T, E extends Exception> T call(LimitedCall<T, E> call) throws E {
+        return call(name, call);
+    }
+
+    /**
+     * Performs the call when the number of calls in flight is below the limit
+     *
+     * @param type type of the call, latency of the call is compared with the baseline of calls of the same type
+     * @param call call
+     * @return result of the call
+     * @throws E if the call fails
+     */
+    public <T, E extends Exception> T call(String type, LimitedCall<T, E> call) throws E {
+        Validate.notNull(type);
+        final long start = acquire();
+        boolean overload = true;
+        try {
+            final T result = call.call();
+            overload = false;
+            return result;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // checked exceptions are business failures of the call, not a sign of overload
+            overload = false;
+            throw e;
+        } finally {
+            release(type, start, overload);
+        }
+    }
+
+    /**
+     * @return current limit
+     */
+    public int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of calls in flight
+     */
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        FlightRecorder.removePeriodicEvent(sampler);
+    }
+
+    /**
+     * Waits for a slot under the limit
+     *
+     * @return start time of the call
+     */
+    long acquire() {
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                available.awaitUninterruptibly();
+            }
+            inFlight++;
+            return clock.getAsLong();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees the slot of the completed call and adjusts the limit
+     *
+     * @param type   type of the call
+     * @param start  start time of the call
+     * @param failed true if the call failed with a sign of overload
+     */
+    void release(String type, long start, boolean failed) {
+        lock.lock();
+        try {
+            final long now = clock.getAsLong();
+            final long latency = now - start;
+            final boolean saturated = inFlight * 2 >= (int) limit;
+            inFlight--;
+            final long baseline = baselines.merge(type, latency, (previous, sample) ->
+                    Math.min(sample, previous + Math.max(1, (long) (previous * BASELINE_DRIFT))));
+
+            final int previous = (int) limit;
+            if (failed || latency > baseline * tolerance) {
+                if (start - decreasedAt >= 0) {
+                    limit = Math.max(minLimit, limit * backoff);
+                    decreasedAt = now;
+                }
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            if ((int) limit != previous) {
+                log.debug("Concurrency limit of {} changed from {} to {}", name, previous, (int) limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Call performed under the limit
+     */
+    @FunctionalInterface
+    public interface LimitedCall<T, E extends Exception> {
+        T call() throws E;
+    }
+}
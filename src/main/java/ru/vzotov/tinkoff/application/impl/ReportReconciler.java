@@ -0,0 +1,98 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import ru.vzotov.banking.domain.model.AccountNumber;
+import ru.vzotov.tinkoff.application.TinkoffOperationSummary;
+import ru.vzotov.tinkoff.application.TinkoffReconciliation;
+import ru.vzotov.tinkoff.application.TinkoffRegisteredOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sort-merge join of report rows with registered operations.
+ * <p>
+ * Both sides are sorted by (date, amount, reference) and joined in one linear pass. Rows left unmatched
+ * by the join are paired by reference to tell rows registered with different values from missing ones.
+ * Identical rows share one reference and are registered as one operation, so they are joined once.
+ */
+final class ReportReconciler {
+
+    private static final Comparator<Entry> ENTRY_ORDER = Comparator
+            .comparing(Entry::date)
+            .thenComparingLong(Entry::amount)
+            .thenComparing(Entry::reference)
+            .thenComparing(Entry::currency);
+
+    private ReportReconciler() {
+    }
+
+    static TinkoffReconciliation reconcile(AccountNumber account, LocalDate from, LocalDate to,
+                                           List<TinkoffOperation> rows, List<TinkoffRegisteredOperation> registered) {
+        final Set<String> references = new HashSet<>();
+        final List<Entry> expected = rows.stream()
+                .map(row -> new Entry(row.paymentDate(), TinkoffOperationSummary.of(row).amount(),
+                        AccountReportServiceTinkoff.transactionReferenceOf(row), row.operationCurrency(), row, null))
+                .filter(entry -> references.add(entry.reference()))
+                .sorted(ENTRY_ORDER)
+                .toList();
+        final List<Entry> actual = registered.stream()
+                .map(op -> new Entry(op.date(), op.amount(), op.reference(), op.currency(), null, op))
+                .sorted(ENTRY_ORDER)
+                .toList();
+
+        int matched = 0;
+        final List<Entry> unmatchedRows = new ArrayList<>();
+        final List<Entry> unmatchedRegistered = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < expected.size() && j < actual.size()) {
+            final int c = ENTRY_ORDER.compare(expected.get(i), actual.get(j));
+            if (c == 0) {
+                matched++;
+                i++;
+                j++;
+            } else if (c < 0) {
+                unmatchedRows.add(expected.get(i++));
+            } else {
+                unmatchedRegistered.add(actual.get(j++));
+            }
+        }
+        unmatchedRows.addAll(expected.subList(i, expected.size()));
+        unmatchedRegistered.addAll(actual.subList(j, actual.size()));
+
+        final Map<String, Deque<Entry>> byReference = new HashMap<>();
+        for (Entry entry : unmatchedRegistered) {
+            byReference.computeIfAbsent(entry.reference(), r -> new ArrayDeque<>()).add(entry);
+        }
+        final List<TinkoffOperation> missing = new ArrayList<>();
+        final List<TinkoffReconciliation.Mismatch> mismatched = new ArrayList<>();
+        for (Entry entry : unmatchedRows) {
+            final Deque<Entry> candidates = byReference.get(entry.reference());
+            if (candidates == null || candidates.isEmpty()) {
+                missing.add(entry.row());
+            } else {
+                mismatched.add(new TinkoffReconciliation.Mismatch(entry.row(), candidates.poll().registered()));
+            }
+        }
+        final List<TinkoffRegisteredOperation> extra = byReference.values().stream()
+                .flatMap(Deque::stream)
+                .sorted(ENTRY_ORDER)
+                .map(Entry::registered)
+                .toList();
+
+        return new TinkoffReconciliation(account, from, to, matched, missing, extra, mismatched);
+    }
+
+    private record Entry(LocalDate date, long amount, String reference, String currency,
+                         TinkoffOperation row, TinkoffRegisteredOperation registered) {
+    }
+}
@@ -0,0 +1,260 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.tinkoff.application.impl.AccountReportServiceTinkoff.PendingReportOutcome;
+import ru.vzotov.tinkoff.application.TinkoffReportListener;
+import ru.vzotov.tinkoff.application.TinkoffReportScheduler;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportRepository;
+import ru.vzotov.tinkoff.domain.model.TinkoffRowFilter;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Weighted fair-share scheduling of reports of several inboxes over a shared pool of workers.
+ * <p>
+ * Each inbox is an own directory of reports, e.g. of a tenant. Reports of an inbox are processed one by one,
+ * smallest first, and reports of different inboxes are processed in parallel. When a worker is free,
+ * it takes the next report of the inbox with the smallest virtual start time (start-time fair queuing):
+ * an inbox is charged the size of the dispatched report divided by its weight, so inboxes share the workers
+ * in proportion to their weights, and a backlog of one inbox does not delay the reports of another one.
+ * An inbox idle for a while is not credited for the time it was idle.
+ * <p>
+ * Each inbox has own listeners and row filter, e.g. own watermarks. A report failed to process is not
+ * scheduled again until the retry delay passes or its file changes, so it does not keep the workers
+ * and the scanner busy. A report met by a scan of unprocessed reports in flight is not failed: it is put back
+ * to its inbox and dispatched again on the next scheduling, and the inbox is not charged for it.
+ * <p>
+ * Workers read their reports without read-ahead: each inbox has at most one report in flight, and the workers
+ * of other inboxes keep the accounting busy while a report is read.
+ */
+public class TinkoffInboxScheduler implements TinkoffReportScheduler, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(TinkoffInboxScheduler.class);
+
+    private final List<InboxState> inboxes;
+
+    private final ExecutorService workers;
+
+    private final int parallelism;
+
+    private final long retryDelay;
+
+    private int running;
+
+    private long completed;
+
+    /**
+     * Virtual start time of the last dispatched report
+     */
+    private double virtualTime;
+
+    /**
+     * @param accountReportService service of reports, shared by the services of inboxes
+     * @param inboxes              inboxes of reports
+     * @param parallelism          number of workers
+     * @param retryDelay           delay before a report failed to process is scheduled again
+     */
+    public TinkoffInboxScheduler(AccountReportServiceTinkoff accountReportService, List<Inbox> inboxes,
+                                 int parallelism, Duration retryDelay) {
+        Validate.notNull(accountReportService);
+        Validate.notEmpty(inboxes);
+        Validate.isTrue(parallelism > 0, "Invalid parallelism %s", parallelism);
+        Validate.notNull(retryDelay);
+        Validate.isTrue(!retryDelay.isNegative(), "Invalid retry delay %s", retryDelay);
+        Validate.isTrue(inboxes.stream().map(Inbox::name).distinct().count() == inboxes.size(),
+                "Inbox names are not unique");
+        this.inboxes = inboxes.stream()
+                .map(inbox -> new InboxState(inbox,
+                        accountReportService.forInbox(inbox.repository(), inbox.listeners(), inbox.rowFilter())))
+                .toList();
+        this.parallelism = parallelism;
+        this.retryDelay = retryDelay.toMillis();
+        this.workers = Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * Finds unprocessed reports of idle inboxes and dispatches them to free workers.
+     * Failed reports waiting for their retry are not counted.
+     *
+     * @return number of reports waiting for a worker or being processed
+     */
+    @Override
+    public synchronized int schedulePendingReports() {
+        final long now = System.currentTimeMillis();
+        for (InboxState inbox : inboxes) {
+            inbox.deferred = false;
+            if (!inbox.busy && inbox.queue.isEmpty()) {
+                final List<AccountReportId> pending = inbox.service.pendingReports();
+                // forget failures of reports processed or removed since then
+                inbox.failed.keySet().retainAll(pending);
+                for (AccountReportId reportId : pending) {
+                    if (isDue(inbox, reportId, now)) {
+                        inbox.queue.addLast(reportId);
+                    }
+                }
+            }
+        }
+        dispatch();
+        return running + inboxes.stream().mapToInt(inbox -> inbox.queue.size()).sum();
+    }
+
+    @Override
+    public synchronized long completed() {
+        return completed;
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * @return true if the report has not failed, or the retry delay has passed or the report file has changed
+     */
+    private static boolean isDue(InboxState inbox, AccountReportId reportId, long now) {
+        final Failure failure = inbox.failed.get(reportId);
+        return failure == null || now >= failure.retryAt()
+                || inbox.inbox.repository().sizeOf(reportId) != failure.size();
+    }
+
+    private void dispatch() {
+        while (running < parallelism) {
+            InboxState next = null;
+            double nextStart = 0;
+            for (InboxState inbox : inboxes) {
+                if (inbox.busy || inbox.deferred || inbox.queue.isEmpty()) {
+                    continue;
+                }
+                final double start = Math.max(virtualTime, inbox.finish);
+                if (next == null || start < nextStart) {
+                    next = inbox;
+                    nextStart = start;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+
+            final InboxState inbox = next;
+            final AccountReportId reportId = inbox.queue.pollFirst();
+            final long size = Math.max(1, inbox.inbox.repository().sizeOf(reportId));
+            final double charge = (double) size / inbox.inbox.weight();
+            virtualTime = nextStart;
+            inbox.finish = nextStart + charge;
+            inbox.busy = true;
+            running++;
+            log.debug("Dispatch report {} of inbox {}", reportId, inbox.inbox.name());
+            workers.execute(() -> {
+                PendingReportOutcome outcome = PendingReportOutcome.FAILED;
+                try {
+                    outcome = inbox.service.processPendingReport(reportId);
+                } catch (RuntimeException e) {
+                    log.error("Processing of report {} of inbox {} failed", reportId, inbox.inbox.name(), e);
+                } finally {
+                    finished(inbox, reportId, charge, outcome);
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(InboxState inbox, AccountReportId reportId, double charge,
+                                       PendingReportOutcome outcome) {
+        inbox.busy = false;
+        running--;
+        switch (outcome) {
+            case PROCESSED -> {
+                completed++;
+                inbox.failed.remove(reportId);
+            }
+            case FAILED -> {
+                log.warn("Report {} of inbox {} failed, retry in {} ms", reportId, inbox.inbox.name(), retryDelay);
+                inbox.failed.put(reportId, new Failure(System.currentTimeMillis() + retryDelay,
+                        inbox.inbox.repository().sizeOf(reportId)));
+            }
+            case BUSY -> {
+                log.debug("Report {} of inbox {} met a scan in flight, defer it", reportId, inbox.inbox.name());
+                inbox.queue.addFirst(reportId);
+                inbox.finish -= charge;
+                inbox.deferred = true;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Inbox of reports. The inbox of the repository of the service is processed by the service itself,
+     * with listeners and the row filter of the service.
+     *
+     * @param name       name of the inbox
+     * @param repository repository of reports of the inbox
+     * @param weight     share of workers relative to other inboxes
+     * @param listeners  listeners of reports of the inbox
+     * @param rowFilter  filter of rows of reports of the inbox
+     */
+    public record Inbox(String name, TinkoffReportRepository repository, int weight,
+                        List<TinkoffReportListener> listeners, TinkoffRowFilter rowFilter) {
+        public Inbox {
+            Validate.notEmpty(name);
+            Validate.notNull(repository);
+            Validate.isTrue(weight > 0, "Invalid weight %s of inbox %s", weight, name);
+            Validate.notNull(listeners);
+            Validate.notNull(rowFilter);
+            listeners = List.copyOf(listeners);
+        }
+
+        /**
+         * Inbox without listeners and row filter
+         */
+        public Inbox(String name, TinkoffReportRepository repository, int weight) {
+            this(name, repository, weight, List.of(), TinkoffRowFilter.NONE);
+        }
+    }
+
+    /**
+     * Failure of a report
+     *
+     * @param retryAt time of the next attempt, in milliseconds since the epoch
+     * @param size    size of the report file when it failed
+     */
+    private record Failure(long retryAt, long size) {
+    }
+
+    private static class InboxState {
+
+        private final Inbox inbox;
+
+        private final AccountReportServiceTinkoff service;
+
+        private final Deque<AccountReportId> queue = new ArrayDeque<>();
+
+        private final Map<AccountReportId, Failure> failed = new HashMap<>();
+
+        /**
+         * Virtual finish time of the last dispatched report
+         */
+        private double finish;
+
+        private boolean busy;
+
+        /**
+         * The inbox met a scan in flight and waits for the next scheduling
+         */
+        private boolean deferred;
+
+        InboxState(Inbox inbox, AccountReportServiceTinkoff service) {
+            this.inbox = inbox;
+            this.service = service;
+        }
+    }
+}
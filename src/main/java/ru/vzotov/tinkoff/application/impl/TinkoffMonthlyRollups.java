@@ -0,0 +1,327 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.tinkoff.application.TinkoffMonthlyRollup;
+import ru.vzotov.tinkoff.application.TinkoffOperationSummary;
+import ru.vzotov.tinkoff.application.TinkoffReportListener;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Monthly totals of settled operations per card or account, category, MCC and currency.
+ * <p>
+ * Rollups are updated in a single pass over the operations of each processed report. The contribution of
+ * every operation is remembered by its fingerprint, so an operation re-delivered by an overlapping report
+ * is counted once, and its contribution is corrected if the new report carries different values,
+ * e.g. a cashback assigned later.
+ * <p>
+ * When a file is given, contributions are persisted there in a compact binary form and loaded on startup.
+ * Contributions changed by a report are appended to the file, so a report touching a few months does not rewrite
+ * the history of all months. The file is compacted to the current contributions when the appended records
+ * outnumber them, on startup after an incomplete append, and when a file of the former format is loaded.
+ */
+public class TinkoffMonthlyRollups implements TinkoffReportListener {
+
+    private static final Logger log = LoggerFactory.getLogger(TinkoffMonthlyRollups.class);
+
+    /**
+     * Former format: a table of rollup keys followed by contributions referring to the keys
+     */
+    private static final int MAGIC_V1 = 0x544b5231; // TKR1
+
+    /**
+     * Log of contributions, a later record of a fingerprint replaces an earlier one
+     */
+    private static final int MAGIC = 0x544b5232; // TKR2
+
+    /**
+     * Number of appended records tolerated in addition to the current contributions before the file is compacted
+     */
+    private static final int COMPACTION_SLACK = 1024;
+
+    private static final Comparator<RollupKey> KEY_ORDER = Comparator
+            .comparing(RollupKey::month)
+            .thenComparing(RollupKey::owner)
+            .thenComparing(RollupKey::category, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(RollupKey::mcc, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(RollupKey::currency);
+
+    private final File file;
+
+    private final Map<RollupKey, TinkoffOperationSummary> rollups = new HashMap<>();
+
+    private final Map<Long, Contribution> contributions = new HashMap<>();
+
+    /**
+     * Number of contribution records in the file
+     */
+    private long records;
+
+    /**
+     * @param file file of persisted rollups, null to keep rollups in memory only
+     */
+    public TinkoffMonthlyRollups(File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            if (!load()) {
+                compact();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void reportProcessed(AccountReportId reportId, List<TinkoffOperation> operations) {
+        final Map<Long, Contribution> changed = new LinkedHashMap<>();
+        for (TinkoffOperation operation : operations) {
+            if (!operation.isHold()) {
+                final long fingerprint = fingerprintOf(operation);
+                final Contribution contribution = apply(fingerprint, operation);
+                if (contribution != null) {
+                    changed.put(fingerprint, contribution);
+                }
+            }
+        }
+        log.debug("Report {} changed {} contributions to monthly rollups", reportId, changed.size());
+        if (!changed.isEmpty() && file != null) {
+            if (!file.exists() || records + changed.size() > 2L * contributions.size() + COMPACTION_SLACK) {
+                compact();
+            } else {
+                append(changed);
+            }
+        }
+    }
+
+    /**
+     * @param month month
+     * @return rollups of the month
+     */
+    public synchronized List<TinkoffMonthlyRollup> rollups(YearMonth month) {
+        Validate.notNull(month);
+        return rollups.entrySet().stream()
+                .filter(e -> e.getKey().month().equals(month))
+                .sorted(Map.Entry.comparingByKey(KEY_ORDER))
+                .map(e -> e.getKey().toRollup(e.getValue()))
+                .toList();
+    }
+
+    /**
+     * @param owner    card mask or account number
+     * @param month    month
+     * @param currency currency of operations
+     * @return totals of the card or the account for the month
+     */
+    public synchronized TinkoffOperationSummary total(String owner, YearMonth month, String currency) {
+        Validate.notNull(owner);
+        Validate.notNull(month);
+        Validate.notNull(currency);
+        return rollups.entrySet().stream()
+                .filter(e -> e.getKey().owner().equals(owner) && e.getKey().month().equals(month)
+                        && e.getKey().currency().equals(currency))
+                .map(Map.Entry::getValue)
+                .reduce(TinkoffOperationSummary.EMPTY, TinkoffOperationSummary::plus);
+    }
+
+    /**
+     * @return contribution of the operation if it was added or corrected, null if it is unchanged
+     */
+    private Contribution apply(long fingerprint, TinkoffOperation operation) {
+        final Contribution contribution = new Contribution(RollupKey.of(operation), TinkoffOperationSummary.of(operation));
+        return apply(fingerprint, contribution) ? contribution : null;
+    }
+
+    /**
+     * @return true if the contribution was added or corrected
+     */
+    private boolean apply(long fingerprint, Contribution contribution) {
+        final Contribution previous = contributions.put(fingerprint, contribution);
+        if (contribution.equals(previous)) {
+            return false;
+        }
+        if (previous != null) {
+            add(previous.key(), TinkoffOperationSummary.EMPTY.minus(previous.summary()));
+        }
+        add(contribution.key(), contribution.summary());
+        return true;
+    }
+
+    private void add(RollupKey key, TinkoffOperationSummary summary) {
+        final TinkoffOperationSummary result = rollups.merge(key, summary, TinkoffOperationSummary::plus);
+        if (result != null && result.count() == 0) {
+            rollups.remove(key);
+        }
+    }
+
+    /**
+     * Fingerprint of the operation built from the fields of the transaction reference of registered operations
+     * and the account number, so account operations of the same date and amount in different accounts are told apart
+     */
+    static long fingerprintOf(TinkoffOperation operation) {
+        final String id = operation.operationDate() + "_" + operation.cardNumber() + "_" + operation.operationAmount()
+                + "_" + (operation.accountNumber() == null ? null : operation.accountNumber().number());
+        return ByteBuffer.wrap(DigestUtils.md5Digest(id.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+
+    /**
+     * @return true if the file is loaded as is, false if it must be compacted
+     */
+    private boolean load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            final int magic = in.readInt();
+            Validate.isTrue(magic == MAGIC || magic == MAGIC_V1, "Invalid file of monthly rollups %s", file);
+            final boolean complete = magic == MAGIC ? loadRecords(in) : loadFormerFormat(in);
+            log.info("Loaded {} monthly rollups of {} operations from {}", rollups.size(), contributions.size(), file);
+            return complete;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to load monthly rollups from " + file, e);
+        }
+    }
+
+    /**
+     * @return true if all records are read, false if the last append is incomplete
+     */
+    private boolean loadRecords(DataInputStream in) throws IOException {
+        final byte[] fingerprint = new byte[Long.BYTES];
+        while (true) {
+            final int first = in.read();
+            if (first < 0) {
+                return true;
+            }
+            fingerprint[0] = (byte) first;
+            final Contribution contribution;
+            try {
+                in.readFully(fingerprint, 1, Long.BYTES - 1);
+                contribution = new Contribution(new RollupKey(in.readUTF(), YearMonth.of(in.readShort(), in.readByte()),
+                        readNullable(in), readNullable(in), in.readUTF()),
+                        new TinkoffOperationSummary(1, in.readLong(), in.readLong(), in.readLong()));
+            } catch (EOFException e) {
+                log.warn("Monthly rollups {} end with an incomplete record after {} records", file, records);
+                return false;
+            }
+            apply(ByteBuffer.wrap(fingerprint).getLong(), contribution);
+            records++;
+        }
+    }
+
+    /**
+     * @return false, so the file is compacted into the current format
+     */
+    private boolean loadFormerFormat(DataInputStream in) throws IOException {
+        final int keyCount = in.readInt();
+        final List<RollupKey> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(new RollupKey(in.readUTF(), YearMonth.of(in.readShort(), in.readByte()),
+                    readNullable(in), readNullable(in), in.readUTF()));
+        }
+        final int contributionCount = in.readInt();
+        for (int i = 0; i < contributionCount; i++) {
+            final long fingerprint = in.readLong();
+            final RollupKey key = keys.get(in.readInt());
+            final TinkoffOperationSummary summary = new TinkoffOperationSummary(1,
+                    in.readLong(), in.readLong(), in.readLong());
+            apply(fingerprint, new Contribution(key, summary));
+        }
+        return false;
+    }
+
+    /**
+     * Appends changed contributions to the file
+     */
+    private void append(Map<Long, Contribution> changed) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath(),
+                StandardOpenOption.APPEND)))) {
+            for (Map.Entry<Long, Contribution> e : changed.entrySet()) {
+                write(out, e.getKey(), e.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to save monthly rollups to " + file, e);
+        }
+        records += changed.size();
+    }
+
+    /**
+     * Rewrites the file with the current contributions
+     */
+    private void compact() {
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile.toPath())))) {
+                out.writeInt(MAGIC);
+                for (Map.Entry<Long, Contribution> e : contributions.entrySet()) {
+                    write(out, e.getKey(), e.getValue());
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to save monthly rollups to " + file, e);
+        }
+        log.debug("Compacted monthly rollups {} from {} to {} records", file, records, contributions.size());
+        records = contributions.size();
+    }
+
+    private static void write(DataOutputStream out, long fingerprint, Contribution contribution) throws IOException {
+        final RollupKey key = contribution.key();
+        out.writeLong(fingerprint);
+        out.writeUTF(key.owner());
+        out.writeShort(key.month().getYear());
+        out.writeByte(key.month().getMonthValue());
+        writeNullable(out, key.category());
+        writeNullable(out, key.mcc());
+        out.writeUTF(key.currency());
+        out.writeLong(contribution.summary().amount());
+        out.writeLong(contribution.summary().cashBack());
+        out.writeLong(contribution.summary().bonus());
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private record RollupKey(String owner, YearMonth month, String category, String mcc, String currency) {
+
+        static RollupKey of(TinkoffOperation operation) {
+            final String owner = operation.cardNumber() != null ? operation.cardNumber() :
+                    operation.accountNumber() != null ? operation.accountNumber().number() : "";
+            return new RollupKey(owner, YearMonth.from(operation.operationDate()),
+                    operation.category(), operation.mcc(), Objects.requireNonNull(operation.operationCurrency()));
+        }
+
+        TinkoffMonthlyRollup toRollup(TinkoffOperationSummary summary) {
+            return new TinkoffMonthlyRollup(owner, month, category, mcc, currency, summary);
+        }
+    }
+
+    private record Contribution(RollupKey key, TinkoffOperationSummary summary) {
+    }
+}
@@ -0,0 +1,236 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import ru.vzotov.tinkoff.application.TinkoffOperationQuery;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * In-memory index of Tinkoff operations.
+ * <p>
+ * Operations are kept in lists sorted by operation date: one list of all operations and one list per
+ * card mask, MCC and category. A query picks the shortest list matching its criteria and scans only
+ * the date range of the query found by binary search.
+ * <p>
+ * Operations are identified by the fingerprint of their transaction, the same as in monthly rollups,
+ * so an operation re-delivered with different values, e.g. a cashback assigned later, replaces
+ * the indexed one.
+ */
+class TinkoffOperationIndex {
+
+    private static final Comparator<TinkoffOperation> BY_DATE = Comparator.comparing(TinkoffOperation::operationDate);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<Long, TinkoffOperation> known = new HashMap<>();
+
+    private List<TinkoffOperation> all = new ArrayList<>();
+
+    private final Map<String, List<TinkoffOperation>> byCard = new HashMap<>();
+
+    private final Map<String, List<TinkoffOperation>> byMcc = new HashMap<>();
+
+    private final Map<String, List<TinkoffOperation>> byCategory = new HashMap<>();
+
+    /**
+     * Adds operations to the index. Operations which are already indexed are skipped,
+     * other versions of indexed operations replace them.
+     *
+     * @param operations operations
+     * @return number of added or replaced operations
+     */
+    int addAll(Collection<TinkoffOperation> operations) {
+        final Map<Long, TinkoffOperation> latest = new LinkedHashMap<>();
+        for (TinkoffOperation operation : operations) {
+            latest.put(TinkoffMonthlyRollups.fingerprintOf(operation), operation);
+        }
+        lock.writeLock().lock();
+        try {
+            final List<TinkoffOperation> added = new ArrayList<>();
+            for (Map.Entry<Long, TinkoffOperation> e : latest.entrySet()) {
+                final TinkoffOperation previous = known.put(e.getKey(), e.getValue());
+                if (e.getValue().equals(previous)) {
+                    continue;
+                }
+                if (previous != null) {
+                    remove(previous);
+                }
+                added.add(e.getValue());
+            }
+            if (added.isEmpty()) {
+                return 0;
+            }
+            added.sort(BY_DATE);
+
+            all = merge(all, added);
+            mergeGroups(byCard, added, TinkoffOperation::cardNumber);
+            mergeGroups(byMcc, added, TinkoffOperation::mcc);
+            mergeGroups(byCategory, added, TinkoffOperation::category);
+            return added.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return all.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Passes operations matching the query to the consumer in order of operation date
+     *
+     * @param query    query
+     * @param consumer consumer of operations
+     */
+    void scan(TinkoffOperationQuery query, Consumer<TinkoffOperation> consumer) {
+        lock.readLock().lock();
+        try {
+            final List<TinkoffOperation> candidates = candidatesOf(query);
+            final LocalDateTime to = query.to() == null ? null : query.to().atTime(LocalTime.MAX);
+            for (int i = lowerBound(candidates, query.from()); i < candidates.size(); i++) {
+                final TinkoffOperation operation = candidates.get(i);
+                if (to != null && operation.operationDate().isAfter(to)) {
+                    break;
+                }
+                if (query.matches(operation)) {
+                    consumer.accept(operation);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the replaced operation from the sorted lists
+     */
+    private void remove(TinkoffOperation operation) {
+        removeFrom(all, operation);
+        removeFromGroup(byCard, operation, operation.cardNumber());
+        removeFromGroup(byMcc, operation, operation.mcc());
+        removeFromGroup(byCategory, operation, operation.category());
+    }
+
+    private static void removeFromGroup(Map<String, List<TinkoffOperation>> groups, TinkoffOperation operation,
+                                        String key) {
+        if (key == null) {
+            return;
+        }
+        final List<TinkoffOperation> group = groups.get(key);
+        if (group != null) {
+            removeFrom(group, operation);
+            if (group.isEmpty()) {
+                groups.remove(key);
+            }
+        }
+    }
+
+    private static void removeFrom(List<TinkoffOperation> operations, TinkoffOperation operation) {
+        for (int i = lowerBound(operations, operation.operationDate()); i < operations.size()
+                && operations.get(i).operationDate().equals(operation.operationDate()); i++) {
+            if (operations.get(i) == operation) {
+                operations.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the shortest sorted list containing all operations matching the query
+     */
+    private List<TinkoffOperation> candidatesOf(TinkoffOperationQuery query) {
+        List<TinkoffOperation> result = all;
+        if (query.cardNumber() != null) {
+            result = shortest(result, byCard.getOrDefault(query.cardNumber(), List.of()));
+        }
+        if (query.mcc() != null) {
+            result = shortest(result, byMcc.getOrDefault(query.mcc(), List.of()));
+        }
+        if (query.category() != null) {
+            result = shortest(result, byCategory.getOrDefault(query.category(), List.of()));
+        }
+        return result;
+    }
+
+    private static List<TinkoffOperation> shortest(List<TinkoffOperation> a, List<TinkoffOperation> b) {
+        return a.size() <= b.size() ? a : b;
+    }
+
+    /**
+     * @return index of the first operation on or after the date
+     */
+    private static int lowerBound(List<TinkoffOperation> operations, LocalDate from) {
+        return from == null ? 0 : lowerBound(operations, from.atStartOfDay());
+    }
+
+    /**
+     * @return index of the first operation on or after the time
+     */
+    private static int lowerBound(List<TinkoffOperation> operations, LocalDateTime start) {
+        int low = 0;
+        int high = operations.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (operations.get(middle).operationDate().isBefore(start)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static void mergeGroups(Map<String, List<TinkoffOperation>> groups, List<TinkoffOperation> added,
+                                    Function<TinkoffOperation, String> keyOf) {
+        final Map<String, List<TinkoffOperation>> addedGroups = new HashMap<>();
+        for (TinkoffOperation operation : added) {
+            final String key = keyOf.apply(operation);
+            if (key != null) {
+                addedGroups.computeIfAbsent(key, k -> new ArrayList<>()).add(operation);
+            }
+        }
+        addedGroups.forEach((key, operations) ->
+                groups.merge(key, operations, TinkoffOperationIndex::merge));
+    }
+
+    /**
+     * Merges two lists sorted by operation date
+     */
+    private static List<TinkoffOperation> merge(List<TinkoffOperation> a, List<TinkoffOperation> b) {
+        if (a.isEmpty()) {
+            return new ArrayList<>(b);
+        }
+        if (BY_DATE.compare(a.get(a.size() - 1), b.get(0)) <= 0) {
+            // usual case of newer operations
+            a.addAll(b);
+            return a;
+        }
+        final List<TinkoffOperation> result = new ArrayList<>(a.size() + b.size());
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            result.add(BY_DATE.compare(a.get(i), b.get(j)) <= 0 ? a.get(i++) : b.get(j++));
+        }
+        result.addAll(a.subList(i, a.size()));
+        result.addAll(b.subList(j, b.size()));
+        return result;
+    }
+}
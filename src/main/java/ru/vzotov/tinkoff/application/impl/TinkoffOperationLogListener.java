@@ -0,0 +1,45 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.apache.commons.lang3.Validate;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.tinkoff.application.TinkoffReportListener;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.infrastructure.fs.TinkoffOperationLog;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Appends operations of processed reports to the operation log.
+ * Reports of an inbox of a tenant are recorded as {@code <inbox>/<report>}, so the log shared by inboxes
+ * tells which inbox each report came from.
+ */
+public class TinkoffOperationLogListener implements TinkoffReportListener {
+
+    private final TinkoffOperationLog operationLog;
+
+    private final String inbox;
+
+    public TinkoffOperationLogListener(TinkoffOperationLog operationLog) {
+        Validate.notNull(operationLog);
+        this.operationLog = operationLog;
+        this.inbox = null;
+    }
+
+    /**
+     * @param operationLog log shared by inboxes
+     * @param inbox        name of the inbox of reports
+     */
+    public TinkoffOperationLogListener(TinkoffOperationLog operationLog, String inbox) {
+        Validate.notNull(operationLog);
+        Validate.notEmpty(inbox);
+        this.operationLog = operationLog;
+        this.inbox = inbox;
+    }
+
+    @Override
+    public void reportProcessed(AccountReportId reportId, List<TinkoffOperation> operations) {
+        operationLog.append(inbox == null ? reportId : new AccountReportId(inbox + "/" + reportId.name(), Instant.now()),
+                operations);
+    }
+}
@@ -0,0 +1,110 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.accounting.domain.model.AccountReportRepository;
+import ru.vzotov.tinkoff.application.TinkoffOperationGrouping;
+import ru.vzotov.tinkoff.application.TinkoffOperationQuery;
+import ru.vzotov.tinkoff.application.TinkoffOperationQueryService;
+import ru.vzotov.tinkoff.application.TinkoffOperationSummary;
+import ru.vzotov.tinkoff.application.TinkoffReportListener;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Query service over the in-memory index of operations.
+ * <p>
+ * The index is loaded from processed reports on the first query and is updated incrementally
+ * when new reports are processed. Reports not processed yet are indexed when they are processed,
+ * so the index does not show operations not registered in the accounting.
+ */
+@Service
+public class TinkoffOperationQueryServiceImpl implements TinkoffOperationQueryService, TinkoffReportListener {
+
+    private static final Logger log = LoggerFactory.getLogger(TinkoffOperationQueryServiceImpl.class);
+
+    private final AccountReportRepository<TinkoffOperation> accountReportRepository;
+
+    private final TinkoffOperationIndex index = new TinkoffOperationIndex();
+
+    private volatile boolean loaded;
+
+    TinkoffOperationQueryServiceImpl(
+            @Autowired @Qualifier("accountReportRepositoryTinkoff") AccountReportRepository<TinkoffOperation> accountReportRepository) {
+        this.accountReportRepository = accountReportRepository;
+    }
+
+    @Override
+    public void reportProcessed(AccountReportId reportId, List<TinkoffOperation> operations) {
+        final int added = index.addAll(operations);
+        log.debug("Indexed {} operations of report {}", added, reportId);
+    }
+
+    @Override
+    public List<TinkoffOperation> find(TinkoffOperationQuery query) {
+        Validate.notNull(query);
+        final List<TinkoffOperation> result = new ArrayList<>();
+        index().scan(query, result::add);
+        return result;
+    }
+
+    @Override
+    public TinkoffOperationSummary summarize(TinkoffOperationQuery query) {
+        Validate.notNull(query);
+        final TinkoffOperationSummary[] result = {TinkoffOperationSummary.EMPTY};
+        index().scan(query, operation -> result[0] = result[0].plus(TinkoffOperationSummary.of(operation)));
+        return result[0];
+    }
+
+    @Override
+    public Map<String, TinkoffOperationSummary> summarize(TinkoffOperationQuery query, TinkoffOperationGrouping grouping) {
+        Validate.notNull(query);
+        Validate.notNull(grouping);
+        final Map<String, TinkoffOperationSummary> result = new TreeMap<>();
+        index().scan(query, operation -> {
+            final String key = grouping.keyOf(operation);
+            if (key != null) {
+                result.merge(key, TinkoffOperationSummary.of(operation), TinkoffOperationSummary::plus);
+            }
+        });
+        return result;
+    }
+
+    private TinkoffOperationIndex index() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    load();
+                    loaded = true;
+                }
+            }
+        }
+        return index;
+    }
+
+    private void load() {
+        final Set<AccountReportId> unprocessed = Set.copyOf(accountReportRepository.findUnprocessed());
+        final List<AccountReportId> reports = accountReportRepository.findAll().stream()
+                .filter(reportId -> !unprocessed.contains(reportId))
+                .toList();
+        log.info("Loading operations of {} reports into the index...", reports.size());
+        for (AccountReportId reportId : reports) {
+            try {
+                index.addAll(accountReportRepository.find(reportId).operations());
+            } catch (RuntimeException e) {
+                log.warn("Unable to index operations of report {}", reportId, e);
+            }
+        }
+        log.info("Indexed {} operations", index.size());
+    }
+}
@@ -0,0 +1,320 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vzotov.accounting.application.AccountNotFoundException;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.banking.domain.model.Card;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportRepository;
+import ru.vzotov.tinkoff.infrastructure.fs.ExternalSorter;
+import ru.vzotov.tinkoff.infrastructure.fs.TinkoffOperationCodec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Backfill of historical reports.
+ * <p>
+ * Reports are parsed in parallel and their operations are sorted into the global order of operation dates.
+ * Sorting keeps operations within a memory budget and spills the rest to disk. Operations repeated
+ * by overlapping reports are removed, and the merged operations are registered at a limited rate.
+ * Holds of a date are registered before settled operations of the same date, so a settled operation
+ * removes its matching hold as it does when reports are processed one by one.
+ * Reports are marked as processed when all operations are registered, and are read once more
+ * to notify listeners in batches.
+ */
+public class TinkoffReportBackfill {
+
+    private static final Logger log = LoggerFactory.getLogger(TinkoffReportBackfill.class);
+
+    private static final int BATCH_SIZE = 64;
+
+    private static final Comparator<TinkoffOperation> OPERATION_ORDER = Comparator
+            .comparing(TinkoffOperation::operationDate)
+            .thenComparing(op -> !op.isHold());
+
+    private final TinkoffReportRepository accountReportRepository;
+
+    private final AccountReportServiceTinkoff accountReportService;
+
+    private final int parallelism;
+
+    private final double operationsPerSecond;
+
+    private final File spillDirectory;
+
+    private final long memoryBudget;
+
+    /**
+     * @param accountReportRepository repository of reports
+     * @param accountReportService    service registering operations of reports
+     * @param parallelism             number of reports parsed at once
+     * @param operationsPerSecond     maximum rate of registration, zero for no limit
+     * @param spillDirectory          directory for operations spilled to disk while they are ordered
+     * @param memoryBudget            estimated size of operations kept in memory while they are ordered, in bytes
+     */
+    public TinkoffReportBackfill(TinkoffReportRepository accountReportRepository,
+                                 AccountReportServiceTinkoff accountReportService,
+                                 int parallelism, double operationsPerSecond,
+                                 File spillDirectory, long memoryBudget) {
+        Validate.notNull(accountReportRepository);
+        Validate.notNull(accountReportService);
+        Validate.isTrue(parallelism > 0, "Invalid parallelism %s", parallelism);
+        Validate.isTrue(operationsPerSecond >= 0, "Invalid rate %s", operationsPerSecond);
+        Validate.notNull(spillDirectory);
+        Validate.isTrue(memoryBudget > 0, "Invalid memory budget %s", memoryBudget);
+        this.accountReportRepository = accountReportRepository;
+        this.accountReportService = accountReportService;
+        this.parallelism = parallelism;
+        this.operationsPerSecond = operationsPerSecond;
+        this.spillDirectory = spillDirectory;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Backfills all unprocessed reports
+     *
+     * @return result of the backfill
+     */
+    public BackfillResult backfill() {
+        return accountReportService.withScanLock(() -> run(accountReportRepository.findUnprocessed()));
+    }
+
+    /**
+     * Backfills the reports.
+     * No scan of unprocessed reports runs while the reports are backfilled, and reports processed
+     * by a scan before the backfill started are skipped.
+     *
+     * @param reports reports to backfill
+     * @return result of the backfill
+     */
+    public BackfillResult backfill(List<AccountReportId> reports) {
+        Validate.notNull(reports);
+        return accountReportService.withScanLock(() -> run(reports.stream()
+                .filter(accountReportRepository::isUnprocessed)
+                .toList()));
+    }
+
+    /**
+     * Backfills the unprocessed reports, under the scan lock
+     */
+    private BackfillResult run(List<AccountReportId> reports) {
+        final long start = System.nanoTime();
+        try (ExternalSorter<ReportOperation> sorter = new ExternalSorter<>(spillDirectory, memoryBudget,
+                ReportOperation.ORDER, ReportOperation.CODEC, ReportOperation::size)) {
+            parse(reports, sorter);
+            log.info("Parsed {} operations of {} reports, {} runs spilled to disk",
+                    sorter.size(), reports.size(), sorter.runs());
+            final BackfillResult result = commit(reports, sorter);
+            log.info("Backfill of {} reports finished in {} ms: {}", reports.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), result);
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to release spilled operations of backfill", e);
+        }
+    }
+
+    /**
+     * Parses the reports in parallel into the sorter
+     */
+    private void parse(List<AccountReportId> reports, ExternalSorter<ReportOperation> sorter) {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, reports.size())));
+        try {
+            final List<Future<?>> futures = new ArrayList<>(reports.size());
+            for (int i = 0; i < reports.size(); i++) {
+                final int report = i;
+                futures.add(executor.submit(() -> {
+                    try (Stream<TinkoffOperation> operations = accountReportRepository.stream(reports.get(report))) {
+                        operations.forEach(operation -> sorter.add(new ReportOperation(report, operation)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Backfill is interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to parse reports for backfill", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private BackfillResult commit(List<AccountReportId> reports, ExternalSorter<ReportOperation> sorter) {
+        final long total = sorter.size();
+        final Iterator<ReportOperation> operations = sorter.sorted();
+        final long nanosPerOperation = operationsPerSecond > 0 ? (long) (1e9 / operationsPerSecond) : 0;
+        final Map<String, Card> cards = new HashMap<>();
+        // overlapping reports repeat an operation with the same date, so it is enough to remember operations of one date
+        final Set<String> seen = new HashSet<>();
+        LocalDateTime date = null;
+        final List<TinkoffOperation> batch = new ArrayList<>(BATCH_SIZE);
+        int batchReport = -1;
+        long committed = 0;
+        long duplicates = 0;
+        long deadline = System.nanoTime();
+        try {
+            while (operations.hasNext()) {
+                final ReportOperation next = operations.next();
+                final TinkoffOperation operation = next.operation();
+
+                if (!operation.operationDate().equals(date)) {
+                    seen.clear();
+                    date = operation.operationDate();
+                }
+                if (!seen.add(keyOf(operation))) {
+                    duplicates++;
+                    continue;
+                }
+
+                if (batch.size() == BATCH_SIZE || (!batch.isEmpty() && batchReport != next.report())) {
+                    if (!register(reports.get(batchReport), batch, cards)) {
+                        return new BackfillResult(reports.size(), total, duplicates, committed, false);
+                    }
+                    committed += batch.size();
+                    deadline = pace(deadline, nanosPerOperation * batch.size());
+                    batch.clear();
+                }
+                batch.add(operation);
+                batchReport = next.report();
+            }
+            if (!batch.isEmpty()) {
+                if (!register(reports.get(batchReport), batch, cards)) {
+                    return new BackfillResult(reports.size(), total, duplicates, committed, false);
+                }
+                committed += batch.size();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Backfill is interrupted after {} operations", committed);
+            return new BackfillResult(reports.size(), total, duplicates, committed, false);
+        }
+
+        // a report failed to be marked does not keep the next ones unprocessed
+        boolean complete = true;
+        for (AccountReportId reportId : reports) {
+            try {
+                accountReportService.markProcessed(reportId);
+                notifyListeners(reportId);
+            } catch (RuntimeException e) {
+                log.error("Unable to mark backfilled report {} as processed", reportId, e);
+                complete = false;
+            }
+        }
+        return new BackfillResult(reports.size(), total, duplicates, committed, complete);
+    }
+
+    /**
+     * Reads the report again and passes its operations to listeners in batches,
+     * so that a large report is never held in memory at once
+     */
+    private void notifyListeners(AccountReportId reportId) {
+        final List<TinkoffOperation> batch = new ArrayList<>(BATCH_SIZE);
+        try (Stream<TinkoffOperation> operations = accountReportRepository.stream(reportId)) {
+            final Iterator<TinkoffOperation> iterator = operations.iterator();
+            while (iterator.hasNext()) {
+                batch.add(iterator.next());
+                if (batch.size() == BATCH_SIZE || !iterator.hasNext()) {
+                    accountReportService.notifyListeners(reportId, List.copyOf(batch));
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private boolean register(AccountReportId reportId, List<TinkoffOperation> batch, Map<String, Card> cards) {
+        try {
+            if (accountReportService.registerOperations(reportId, batch, cards)) {
+                return true;
+            }
+        } catch (AccountNotFoundException e) {
+            log.warn("Backfill failed for report {}", reportId);
+            return false;
+        }
+        log.warn("Backfill stopped at report {}", reportId);
+        return false;
+    }
+
+    /**
+     * Waits until the deadline of the registered operations
+     *
+     * @return deadline of the next operations
+     */
+    private static long pace(long deadline, long nanos) throws InterruptedException {
+        if (nanos == 0) {
+            return deadline;
+        }
+        final long next = Math.max(deadline, System.nanoTime() - nanos) + nanos;
+        final long wait = next - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return next;
+    }
+
+    private static String keyOf(TinkoffOperation operation) {
+        return AccountReportServiceTinkoff.transactionReferenceOf(operation) + "_" + operation.isHold() + "_"
+                + (operation.accountNumber() == null ? null : operation.accountNumber().number());
+    }
+
+    /**
+     * Operation of the report with the given index in the list of backfilled reports
+     */
+    private record ReportOperation(int report, TinkoffOperation operation) {
+
+        static final Comparator<ReportOperation> ORDER = Comparator
+                .comparing(ReportOperation::operation, OPERATION_ORDER)
+                .thenComparingInt(ReportOperation::report);
+
+        static final ExternalSorter.Codec<ReportOperation> CODEC = new ExternalSorter.Codec<>() {
+            @Override
+            public void write(DataOutput out, ReportOperation element) throws IOException {
+                out.writeInt(element.report());
+                TinkoffOperationCodec.write(out, element.operation());
+            }
+
+            @Override
+            public ReportOperation read(DataInput in) throws IOException {
+                return new ReportOperation(in.readInt(), TinkoffOperationCodec.read(in));
+            }
+        };
+
+        long size() {
+            return Integer.BYTES + 16 + TinkoffOperationCodec.sizeOf(operation);
+        }
+    }
+
+    /**
+     * Result of a backfill
+     *
+     * @param reports    number of backfilled reports
+     * @param parsed     number of parsed operations
+     * @param duplicates number of operations repeated by overlapping reports
+     * @param committed  number of registered operations
+     * @param complete   true if all operations are registered and reports are marked as processed
+     */
+    public record BackfillResult(int reports, long parsed, long duplicates, long committed, boolean complete) {
+    }
+}
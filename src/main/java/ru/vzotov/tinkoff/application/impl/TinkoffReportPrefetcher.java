@@ -0,0 +1,160 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Read-ahead of pending reports.
+ * <p>
+ * While the current report is registered, the next reports are read and parsed in the background,
+ * so the switch between reports does not wait for the disk. At most {@code depth} reports are read ahead,
+ * and the total estimated size of parsed reports read ahead is kept within the memory budget. A report larger
+ * than the budget is not read ahead, it is read when its turn comes.
+ */
+public class TinkoffReportPrefetcher {
+
+    private static final Logger log = LoggerFactory.getLogger(TinkoffReportPrefetcher.class);
+
+    private final int depth;
+
+    private final long memoryBudget;
+
+    /**
+     * @param depth        maximum number of reports read ahead
+     * @param memoryBudget maximum total estimated size of parsed reports read ahead, in bytes
+     */
+    public TinkoffReportPrefetcher(int depth, long memoryBudget) {
+        Validate.isTrue(depth > 0, "Invalid depth %s", depth);
+        Validate.isTrue(memoryBudget > 0, "Invalid memory budget %s", memoryBudget);
+        this.depth = depth;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Starts reading ahead of the reports
+     *
+     * @param reports reports in the order they are taken
+     * @param sizeOf  estimated size of the parsed report in memory
+     * @param loader  reads and parses the report
+     * @return loaded reports in the order of {@code reports}
+     */
+    public <R> Prefetch<R> prefetch(List<AccountReportId> reports, ToLongFunction<AccountReportId> sizeOf,
+                                    Function<AccountReportId, R> loader) {
+        Validate.notNull(reports);
+        Validate.notNull(sizeOf);
+        Validate.notNull(loader);
+        return new Prefetch<>(reports, sizeOf, loader);
+    }
+
+    /**
+     * Reports being read ahead. Reports not taken yet are abandoned on close.
+     */
+    public final class Prefetch<R> implements Iterator<R>, AutoCloseable {
+
+        private final List<AccountReportId> reports;
+
+        private final ToLongFunction<AccountReportId> sizeOf;
+
+        private final Function<AccountReportId, R> loader;
+
+        private final ExecutorService executor;
+
+        private final Deque<Pending<R>> pending = new ArrayDeque<>();
+
+        /**
+         * Index of the next report to read ahead
+         */
+        private int scheduled;
+
+        /**
+         * Index of the next report to take
+         */
+        private int taken;
+
+        private long reserved;
+
+        private Prefetch(List<AccountReportId> reports, ToLongFunction<AccountReportId> sizeOf,
+                         Function<AccountReportId, R> loader) {
+            this.reports = List.copyOf(reports);
+            this.sizeOf = sizeOf;
+            this.loader = loader;
+            this.executor = Executors.newFixedThreadPool(Math.min(depth, Math.max(1, reports.size())));
+            schedule();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return taken < reports.size();
+        }
+
+        @Override
+        public R next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final AccountReportId reportId = reports.get(taken++);
+            final Pending<R> head = pending.pollFirst();
+            try {
+                if (head == null) {
+                    // the report did not fit into the budget or the depth, read it now
+                    scheduled = Math.max(scheduled, taken);
+                    return loader.apply(reportId);
+                }
+                reserved -= head.size();
+                return head.future().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Read-ahead of report " + reportId + " is interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException("Unable to read report " + reportId, e.getCause());
+            } finally {
+                schedule();
+            }
+        }
+
+        @Override
+        public void close() {
+            executor.shutdownNow();
+            if (!pending.isEmpty()) {
+                log.debug("Abandoned read-ahead of {} reports", pending.size());
+                pending.clear();
+            }
+        }
+
+        /**
+         * Reads ahead the next reports while they fit into the depth and the budget
+         */
+        private void schedule() {
+            while (scheduled < reports.size() && pending.size() < depth) {
+                final AccountReportId reportId = reports.get(scheduled);
+                final long size = Math.max(0, sizeOf.applyAsLong(reportId));
+                if (reserved + size > memoryBudget) {
+                    break;
+                }
+                reserved += size;
+                pending.addLast(new Pending<>(size, executor.submit(() -> loader.apply(reportId))));
+                scheduled++;
+            }
+        }
+    }
+
+    private record Pending<R>(long size, Future<R> future) {
+    }
+}
@@ -0,0 +1,154 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.banking.domain.model.AccountNumber;
+import ru.vzotov.tinkoff.application.TinkoffReportListener;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffRowFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * High-watermarks of committed operations per card mask and account.
+ * <p>
+ * The watermark of a card or an account is the latest date of its settled operations in processed reports.
+ * When skipping is enabled, parsers skip rows of the card or the account dated at or below the watermark
+ * minus the margin, so the history repeated by each new export is not registered again. The margin keeps
+ * rows of holds which settle after newer operations are committed. Rows without a card and an account
+ * are tracked per currency, like the account they are registered to.
+ * <p>
+ * Watermarks assume reports are delivered in chronological order, use backfill for historical reports.
+ * When a file is given, watermarks are persisted there and loaded on startup.
+ */
+public class TinkoffWatermarks implements TinkoffReportListener, TinkoffRowFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(TinkoffWatermarks.class);
+
+    private final File file;
+
+    private final Duration margin;
+
+    private final boolean skipEnabled;
+
+    private final Map<String, LocalDateTime> watermarks = new ConcurrentHashMap<>();
+
+    /**
+     * @param file        file of persisted watermarks, null to keep watermarks in memory only
+     * @param margin      margin below the watermark for late holds
+     * @param skipEnabled true to skip rows below watermarks, false to record watermarks only
+     */
+    public TinkoffWatermarks(File file, Duration margin, boolean skipEnabled) {
+        Validate.notNull(margin);
+        Validate.isTrue(!margin.isNegative(), "Invalid margin %s", margin);
+        this.file = file;
+        this.margin = margin;
+        this.skipEnabled = skipEnabled;
+        if (file != null && file.exists()) {
+            load();
+        }
+    }
+
+    @Override
+    public synchronized void reportProcessed(AccountReportId reportId, List<TinkoffOperation> operations) {
+        int changed = 0;
+        for (TinkoffOperation operation : operations) {
+            if (operation.isHold()) {
+                continue;
+            }
+            final String owner = ownerOf(operation.cardNumber(), operation.accountNumber(), operation.operationCurrency());
+            final LocalDateTime previous = watermarks.get(owner);
+            if (previous == null || operation.operationDate().isAfter(previous)) {
+                watermarks.put(owner, operation.operationDate());
+                changed++;
+            }
+        }
+        if (changed > 0) {
+            log.debug("Report {} moved {} watermarks", reportId, changed);
+            if (file != null) {
+                save();
+            }
+        }
+    }
+
+    @Override
+    public boolean skip(String cardNumber, AccountNumber accountNumber, String currency, LocalDateTime operationDate) {
+        if (!skipEnabled) {
+            return false;
+        }
+        return skip(watermarks, cardNumber, accountNumber, currency, operationDate);
+    }
+
+    @Override
+    public TinkoffRowFilter snapshot() {
+        if (!skipEnabled) {
+            return NONE;
+        }
+        final Map<String, LocalDateTime> snapshot = Map.copyOf(watermarks);
+        return (cardNumber, accountNumber, currency, operationDate) ->
+                skip(snapshot, cardNumber, accountNumber, currency, operationDate);
+    }
+
+    private boolean skip(Map<String, LocalDateTime> watermarks, String cardNumber, AccountNumber accountNumber,
+                         String currency, LocalDateTime operationDate) {
+        final LocalDateTime watermark = watermarks.get(ownerOf(cardNumber, accountNumber, currency));
+        return watermark != null && !operationDate.isAfter(watermark.minus(margin));
+    }
+
+    /**
+     * @param owner card mask or account number, currency for rows without both
+     * @return watermark of the owner, null if no operations of the owner are committed
+     */
+    public LocalDateTime watermarkOf(String owner) {
+        Validate.notNull(owner);
+        return watermarks.get(owner);
+    }
+
+    /**
+     * Rows without a card and an account are registered to the account of their currency,
+     * so they are keyed by the currency
+     */
+    static String ownerOf(String cardNumber, AccountNumber accountNumber, String currency) {
+        return cardNumber != null ? cardNumber : accountNumber != null ? accountNumber.number() : currency;
+    }
+
+    private void load() {
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                final int separator = line.lastIndexOf('\t');
+                if (separator >= 0) {
+                    watermarks.put(line.substring(0, separator), LocalDateTime.parse(line.substring(separator + 1)));
+                }
+            }
+            log.info("Loaded {} watermarks from {}", watermarks.size(), file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to load watermarks from " + file, e);
+        }
+    }
+
+    private void save() {
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            Files.writeString(tempFile.toPath(), new TreeMap<>(watermarks).entrySet().stream()
+                    .map(e -> e.getKey() + "\t" + e.getValue() + "\n")
+                    .collect(Collectors.joining()), StandardCharsets.UTF_8);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to save watermarks to " + file, e);
+        }
+    }
+}
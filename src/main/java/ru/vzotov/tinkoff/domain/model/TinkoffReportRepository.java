@@ -0,0 +1,64 @@
+package ru.vzotov.tinkoff.domain.model;
+
+import ru.vzotov.accounting.domain.model.AccountReport;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.accounting.domain.model.AccountReportRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.stream.Stream;
+
+public interface TinkoffReportRepository extends AccountReportRepository<TinkoffOperation> {
+
+    /**
+     * Finds the report skipping rows rejected by the filter
+     *
+     * @param reportId id of the report
+     * @param filter   filter of rows
+     * @return report with operations of accepted rows
+     */
+    AccountReport<TinkoffOperation> find(AccountReportId reportId, TinkoffRowFilter filter);
+
+    /**
+     * Saves the report parsing its content while it is written.
+     * The report is not saved if its content can not be parsed.
+     *
+     * @param name    name of the report
+     * @param content content of the report
+     * @return saved and parsed report
+     * @throws IOException              if the report can not be saved
+     * @throws IllegalArgumentException if the report is invalid
+     */
+    TinkoffReportUpload saveAndParse(String name, InputStream content) throws IOException;
+
+    /**
+     * @param reportId id of the report
+     * @return true if the report is saved and not processed yet
+     */
+    boolean isUnprocessed(AccountReportId reportId);
+
+    /**
+     * @param reportId id of the report
+     * @return size of the stored report in bytes
+     */
+    long sizeOf(AccountReportId reportId);
+
+    /**
+     * Estimates the size of the report content without reading it, e.g. the size of a compressed report
+     * once it is decompressed
+     *
+     * @param reportId id of the report
+     * @return estimated size of the decoded report in bytes
+     */
+    long decodedSizeOf(AccountReportId reportId);
+
+    /**
+     * Opens operations of the report as a lazy stream, the report is read as the stream is consumed.
+     * The stream must be closed to release the report.
+     *
+     * @param reportId id of the report
+     * @return operations of the report
+     */
+    Stream<TinkoffOperation> stream(AccountReportId reportId);
+
+}
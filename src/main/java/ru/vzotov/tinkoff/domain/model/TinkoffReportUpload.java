@@ -0,0 +1,23 @@
+package ru.vzotov.tinkoff.domain.model;
+
+import org.apache.commons.lang3.Validate;
+import ru.vzotov.accounting.domain.model.AccountReport;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+
+/**
+ * Report which was parsed while it was uploaded
+ *
+ * @param reportId id of the saved report
+ * @param report   parsed report
+ */
+public record TinkoffReportUpload(AccountReportId reportId, AccountReport<TinkoffOperation> report) {
+
+    public TinkoffReportUpload {
+        Validate.notNull(reportId);
+        Validate.notNull(report);
+    }
+
+    public int rows() {
+        return report.operations().size();
+    }
+}
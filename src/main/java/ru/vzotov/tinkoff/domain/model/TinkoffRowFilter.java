@@ -0,0 +1,39 @@
+package ru.vzotov.tinkoff.domain.model;
+
+import ru.vzotov.banking.domain.model.AccountNumber;
+
+import java.time.LocalDateTime;
+
+/**
+ * Filter of report rows applied by parsers before operations are built
+ */
+@FunctionalInterface
+public interface TinkoffRowFilter {
+
+    TinkoffRowFilter NONE = (cardNumber, accountNumber, currency, operationDate) -> false;
+
+    /**
+     * @param cardNumber    card mask of the row, null if the row has no card
+     * @param accountNumber account of the row, null if the report does not tell it
+     * @param currency      currency of the operation
+     * @param operationDate date and time of the operation
+     * @return true if the row must be skipped
+     */
+    boolean skip(String cardNumber, AccountNumber accountNumber, String currency, LocalDateTime operationDate);
+
+    /**
+     * @return true if the operation must be skipped
+     */
+    default boolean skip(TinkoffOperation operation) {
+        return skip(operation.cardNumber(), operation.accountNumber(), operation.operationCurrency(),
+                operation.operationDate());
+    }
+
+    /**
+     * @return filter which keeps skipping the same rows as this filter does now, e.g. while a report
+     * is read more than once and the state of this filter changes in between
+     */
+    default TinkoffRowFilter snapshot() {
+        return this;
+    }
+}
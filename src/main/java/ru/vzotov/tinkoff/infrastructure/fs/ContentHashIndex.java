@@ -0,0 +1,249 @@
+package ru.vzotov.tinkoff.infrastructure.fs;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Index of SHA-256 hashes of report contents.
+ * <p>
+ * The index is stored as a text file with lines {@code <hash> <report name>}, a later line of a hash overrides
+ * an earlier one. When the file does not exist yet, the index is built from the reports already stored
+ * in the repository. An entry of a report which is no longer stored, e.g. removed by hand, is dropped
+ * when it is found, so the same content can be saved again.
+ */
+class ContentHashIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentHashIndex.class);
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final long CHUNK = 8L * 1024 * 1024;
+
+    private final File file;
+
+    private final Supplier<List<File>> reports;
+
+    private final Predicate<String> stored;
+
+    private Map<String, String> hashes;
+
+    /**
+     * @param file    file of the index
+     * @param reports supplier of the reports used to build the index when it does not exist
+     * @param stored  tells whether the report with the given name is still stored, processed or not
+     */
+    ContentHashIndex(File file, Supplier<List<File>> reports, Predicate<String> stored) {
+        Validate.notNull(file);
+        Validate.notNull(reports);
+        Validate.notNull(stored);
+        this.file = file;
+        this.reports = reports;
+        this.stored = stored;
+    }
+
+    /**
+     * Loads the index, building it from stored reports if needed
+     */
+    synchronized void open() {
+        hashes();
+    }
+
+    /**
+     * @param hash content hash
+     * @return name of the stored report with this content or null
+     */
+    synchronized String find(String hash) {
+        final String name = hashes().get(hash);
+        if (name == null || stored.test(name)) {
+            return name;
+        }
+        log.info("Report {} is no longer stored, drop it from content index {}", name, file);
+        hashes.remove(hash);
+        try {
+            save();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write content index " + file, e);
+        }
+        return null;
+    }
+
+    synchronized void add(String hash, String name) throws IOException {
+        hashes().put(hash, name);
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(hash + " " + name);
+            writer.newLine();
+        }
+    }
+
+    private Map<String, String> hashes() {
+        if (hashes == null) {
+            try {
+                hashes = file.exists() ? load() : build();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read content index " + file, e);
+            }
+        }
+        return hashes;
+    }
+
+    private Map<String, String> load() throws IOException {
+        final Map<String, String> result = new HashMap<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            final int separator = line.indexOf(' ');
+            if (separator > 0) {
+                result.put(line.substring(0, separator), line.substring(separator + 1));
+            }
+        }
+        return result;
+    }
+
+    private Map<String, String> build() throws IOException {
+        log.info("Building content index {}...", file);
+        final Map<String, String> result = new HashMap<>();
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (File report : reports.get()) {
+                try (InputStream stream = ReportFiles.open(report).stream()) {
+                    final String hash = hash(stream);
+                    if (result.putIfAbsent(hash, report.getName()) == null) {
+                        writer.write(hash + " " + report.getName());
+                        writer.newLine();
+                    }
+                }
+            }
+        }
+        log.info("Content index {} contains {} reports", file, result.size());
+        return result;
+    }
+
+    /**
+     * Rewrites the file of the index with the current entries
+     */
+    private void save() throws IOException {
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> e : hashes.entrySet()) {
+                writer.write(e.getKey() + " " + e.getValue());
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String hash(InputStream stream) throws IOException {
+        final MessageDigest digest = digest();
+        try (DigestInputStream in = new DigestInputStream(stream, digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return hex(digest);
+    }
+
+    /**
+     * Copies the raw content of the report file to the target file computing SHA-256 of the decoded content,
+     * so a compressed report has the same hash as the uncompressed one. The raw content is written to the target
+     * file while it is read by the decoder.
+     *
+     * @param name    name of the report file
+     * @param content raw content to copy
+     * @param target  target file
+     * @return SHA-256 of the decoded content as a hex string
+     * @throws IOException if the content can not be copied or decoded
+     */
+    static String copy(String name, InputStream content, File target) throws IOException {
+        if (!ReportFiles.isCompressed(name)) {
+            return copy(content, target);
+        }
+        final MessageDigest digest = digest();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+             InputStream tee = new TeeInputStream(content, out)) {
+            try (InputStream decoded = new DigestInputStream(
+                    ReportFiles.open(name, CloseShieldInputStream.wrap(tee)).stream(), digest)) {
+                decoded.transferTo(OutputStream.nullOutputStream());
+            }
+            tee.transferTo(OutputStream.nullOutputStream());
+        }
+        return hex(digest);
+    }
+
+    /**
+     * Copies the content to the target file computing SHA-256 of the content.
+     * File streams are read twice: hashed through a memory mapping, then copied by {@link FileChannel#transferTo},
+     * which lets the kernel copy the pages without passing them through the heap.
+     * Other streams are hashed in the same pass while they are transferred into the target channel.
+     *
+     * @param content content to copy
+     * @param target  target file
+     * @return SHA-256 of the content as a hex string
+     * @throws IOException if the content can not be copied
+     */
+    static String copy(InputStream content, File target) throws IOException {
+        final MessageDigest digest = digest();
+        try (FileChannel out = FileChannel.open(target.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (content instanceof FileInputStream fileStream) {
+                final FileChannel in = fileStream.getChannel();
+                final long start = in.position();
+                final long size = in.size() - start;
+                for (long offset = 0; offset < size; offset += CHUNK) {
+                    final MappedByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, start + offset,
+                            Math.min(CHUNK, size - offset));
+                    digest.update(chunk);
+                }
+                for (long position = 0; position < size; ) {
+                    position += in.transferTo(start + position, size - position, out);
+                }
+                in.position(start + size);
+            } else {
+                final ReadableByteChannel in = Channels.newChannel(new DigestInputStream(content, digest));
+                long position = 0;
+                long transferred;
+                while ((transferred = out.transferFrom(in, position, CHUNK)) > 0) {
+                    position += transferred;
+                }
+            }
+        }
+        return hex(digest);
+    }
+
+    static String hex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
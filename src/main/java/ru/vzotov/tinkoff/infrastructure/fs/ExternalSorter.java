@@ -0,0 +1,284 @@
+package ru.vzotov.tinkoff.infrastructure.fs;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * Sorter of elements bounded by a memory budget.
+ * <p>
+ * Elements are collected in memory until their estimated size exceeds the budget, then they are sorted
+ * and spilled to a run file in a compact binary form. Sorted elements are read by a k-way merge of
+ * the runs, merging at most {@link #MAX_FAN_IN} runs at once. The sort is stable: equal elements are
+ * returned in the order they were added. Run files are deleted when the sorter is closed.
+ *
+ * @param <T> type of elements
+ */
+public class ExternalSorter<T> implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ExternalSorter.class);
+
+    static final int MAX_FAN_IN = 64;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+
+    private final long memoryBudget;
+
+    private final Comparator<? super T> order;
+
+    private final Codec<T> codec;
+
+    private final ToLongFunction<? super T> sizeOf;
+
+    private final List<T> buffer = new ArrayList<>();
+
+    private final List<Run> runs = new ArrayList<>();
+
+    private final List<Closeable> readers = new ArrayList<>();
+
+    private long bufferSize;
+
+    private int runFiles;
+
+    private long size;
+
+    private boolean consumed;
+
+    /**
+     * @param tempDirectory directory for run files
+     * @param memoryBudget  estimated size of elements kept in memory, in bytes
+     * @param order         order of elements
+     * @param codec         binary form of elements
+     * @param sizeOf        estimated size of an element in memory, in bytes
+     */
+    public ExternalSorter(File tempDirectory, long memoryBudget, Comparator<? super T> order,
+                          Codec<T> codec, ToLongFunction<? super T> sizeOf) {
+        Validate.notNull(tempDirectory);
+        Validate.isTrue(memoryBudget > 0, "Invalid memory budget %s", memoryBudget);
+        Validate.notNull(order);
+        Validate.notNull(codec);
+        Validate.notNull(sizeOf);
+        this.memoryBudget = memoryBudget;
+        this.order = order;
+        this.codec = codec;
+        this.sizeOf = sizeOf;
+        try {
+            Files.createDirectories(tempDirectory.toPath());
+            this.directory = Files.createTempDirectory(tempDirectory.toPath(), "sort-").toFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create directory for sort runs in " + tempDirectory, e);
+        }
+    }
+
+    public synchronized void add(T element) {
+        Validate.notNull(element);
+        Validate.validState(!consumed, "Sorted elements are already read");
+        buffer.add(element);
+        bufferSize += sizeOf.applyAsLong(element);
+        size++;
+        if (bufferSize >= memoryBudget) {
+            spill();
+        }
+    }
+
+    public synchronized void addAll(Collection<? extends T> elements) {
+        for (T element : elements) {
+            add(element);
+        }
+    }
+
+    /**
+     * @return number of added elements
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return number of runs spilled to disk
+     */
+    public synchronized int runs() {
+        return runs.size();
+    }
+
+    /**
+     * Sorted elements can be read once, no elements can be added after that
+     *
+     * @return iterator over sorted elements
+     */
+    public synchronized Iterator<T> sorted() {
+        Validate.validState(!consumed, "Sorted elements are already read");
+        consumed = true;
+        if (runs.isEmpty()) {
+            buffer.sort(order);
+            return buffer.iterator();
+        }
+        spill();
+        try {
+            while (runs.size() > MAX_FAN_IN) {
+                final List<Run> merged = new ArrayList<>();
+                for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                    final List<Run> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                    } else {
+                        merged.add(write(new MergeIterator(group)));
+                        for (Run run : group) {
+                            Files.delete(run.file().toPath());
+                        }
+                    }
+                }
+                runs.clear();
+                runs.addAll(merged);
+            }
+            return new MergeIterator(runs);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to merge sort runs in " + directory, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Closeable reader : readers) {
+            reader.close();
+        }
+        readers.clear();
+        buffer.clear();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private void spill() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        buffer.sort(order);
+        try {
+            runs.add(write(buffer.iterator()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to spill sort run to " + directory, e);
+        }
+        log.debug("Spilled run of {} elements, {} bytes estimated, to {}", buffer.size(), bufferSize, directory);
+        buffer.clear();
+        bufferSize = 0;
+    }
+
+    private Run write(Iterator<T> elements) throws IOException {
+        final File file = new File(directory, String.format("run-%06d", runFiles++));
+        long count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file.toPath()), BUFFER_SIZE))) {
+            while (elements.hasNext()) {
+                codec.write(out, elements.next());
+                count++;
+            }
+        }
+        return new Run(file, count);
+    }
+
+    /**
+     * Binary form of elements
+     */
+    public interface Codec<T> {
+
+        void write(DataOutput out, T element) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
+    private record Run(File file, long size) {
+    }
+
+    private class RunReader implements Closeable {
+
+        private final int index;
+
+        private final DataInputStream in;
+
+        private long remaining;
+
+        private T current;
+
+        RunReader(int index, Run run) throws IOException {
+            this.index = index;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run.file().toPath()), BUFFER_SIZE));
+            this.remaining = run.size();
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                current = null;
+                close();
+                return false;
+            }
+            current = codec.read(in);
+            remaining--;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private class MergeIterator implements Iterator<T> {
+
+        private final PriorityQueue<RunReader> queue = new PriorityQueue<>(
+                Comparator.<RunReader, T>comparing(r -> r.current, order).thenComparingInt(r -> r.index));
+
+        MergeIterator(List<Run> runs) throws IOException {
+            for (int i = 0; i < runs.size(); i++) {
+                final RunReader reader = new RunReader(i, runs.get(i));
+                readers.add(reader);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            final RunReader reader = queue.poll();
+            if (reader == null) {
+                throw new NoSuchElementException();
+            }
+            final T result = reader.current;
+            try {
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read sort run in " + directory, e);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ru.vzotov.tinkoff.infrastructure.fs;
+
+import org.apache.commons.lang3.Validate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportRepository;
+
+/**
+ * Reactive access to stored reports.
+ * <p>
+ * Operations are parsed as downstream demand arrives, so the report is read no further than
+ * the rows requested so far, and cancellation releases the report file. Reading of report files is
+ * confined to the scheduler, so subscribers on non-blocking threads are never blocked by file I/O.
+ */
+public class ReactiveTinkoffReportRepository {
+
+    private final TinkoffReportRepository repository;
+
+    private final Scheduler scheduler;
+
+    public ReactiveTinkoffReportRepository(TinkoffReportRepository repository) {
+        this(repository, Schedulers.boundedElastic());
+    }
+
+    public ReactiveTinkoffReportRepository(TinkoffReportRepository repository, Scheduler scheduler) {
+        Validate.notNull(repository);
+        Validate.notNull(scheduler);
+        this.repository = repository;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param reportId id of the report
+     * @return operations of the report
+     */
+    public Flux<TinkoffOperation> find(AccountReportId reportId) {
+        Validate.notNull(reportId);
+        return Flux.fromStream(() -> repository.stream(reportId))
+                .subscribeOn(scheduler);
+    }
+
+    /**
+     * @return unprocessed reports
+     */
+    public Flux<AccountReportId> findUnprocessed() {
+        return Mono.fromCallable(repository::findUnprocessed)
+                .flatMapIterable(reports -> reports)
+                .subscribeOn(scheduler);
+    }
+
+    /**
+     * @param reportId id of the report
+     * @return completion of the marking
+     */
+    public Mono<Void> markProcessed(AccountReportId reportId) {
+        Validate.notNull(reportId);
+        return Mono.fromRunnable(() -> repository.markProcessed(reportId))
+                .subscribeOn(scheduler)
+                .then();
+    }
+}
@@ -0,0 +1,197 @@
+package ru.vzotov.tinkoff.infrastructure.fs;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Storage of processed reports sharded by year and month of report creation:
+ * <pre>
+ *     archive/2023/03/operations_processed.csv
+ *     archive/2023/04/report_processed.ofx.gz
+ * </pre>
+ * The archive keeps an in-memory index of its files, so lookup by name does not depend on the number of shards.
+ * A report is written to a temporary file in its shard and renamed atomically, so a crash never leaves
+ * a truncated report in the archive.
+ */
+public class ReportArchive {
+
+    private static final Logger log = LoggerFactory.getLogger(ReportArchive.class);
+
+    /**
+     * Prefix of temporary files of reports being archived, they are not indexed
+     */
+    private static final String TEMP_PREFIX = ".archive-";
+
+    private final File directory;
+
+    private final boolean compressed;
+
+    private final ZoneId zone;
+
+    private volatile Map<String, File> index;
+
+    public ReportArchive(File directory, boolean compressed) {
+        this(directory, compressed, TinkoffReportRepositoryFiles.TINKOFF_TZ);
+    }
+
+    public ReportArchive(File directory, boolean compressed, ZoneId zone) {
+        Validate.notNull(directory);
+        Validate.notNull(zone);
+        this.directory = directory;
+        this.compressed = compressed;
+        this.zone = zone;
+    }
+
+    public File directory() {
+        return directory;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Moves the report file to the shard of its creation month
+     *
+     * @param reportFile    report file in the inbox
+     * @param processedName name of the processed report
+     * @return archived file
+     * @throws IOException if the file can not be moved
+     */
+    public synchronized File archive(File reportFile, String processedName) throws IOException {
+        Validate.isTrue(reportFile.exists() && reportFile.canRead());
+        Validate.isTrue(!contains(processedName), "Report file with this name is already archived:", processedName);
+
+        final Instant created = Files.readAttributes(reportFile.toPath(), BasicFileAttributes.class)
+                .creationTime().toInstant();
+        final File shard = shardOf(created);
+        FileUtils.forceMkdir(shard);
+
+        final boolean compress = compressed && !ReportFiles.isCompressed(processedName);
+        final File archivedFile = new File(shard, compress ? processedName + ReportFiles.GZ : processedName);
+        Validate.isTrue(!archivedFile.exists(), "Archived file already exists: %s", archivedFile);
+        if (!compress) {
+            try {
+                Files.move(reportFile.toPath(), archivedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return indexed(reportFile, archivedFile);
+            } catch (AtomicMoveNotSupportedException e) {
+                log.debug("Report {} is copied to another file store", reportFile.getName());
+            }
+        }
+
+        final Path tempFile = Files.createTempFile(shard.toPath(), TEMP_PREFIX, null);
+        try {
+            if (compress) {
+                try (InputStream in = Files.newInputStream(reportFile.toPath());
+                     OutputStream out = new GZIPOutputStream(Files.newOutputStream(tempFile))) {
+                    in.transferTo(out);
+                }
+            } else {
+                Files.copy(reportFile.toPath(), tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tempFile, archivedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        FileUtils.delete(reportFile);
+        return indexed(reportFile, archivedFile);
+    }
+
+    /**
+     * Adds the archived file to the index
+     *
+     * @return archived file
+     */
+    private File indexed(File reportFile, File archivedFile) {
+        index().put(archivedFile.getName(), archivedFile);
+        log.debug("Report {} archived as {}", reportFile.getName(), archivedFile);
+        return archivedFile;
+    }
+
+    /**
+     * @param name name of the archived file
+     * @return archived file or null if there is no file with this name in the archive
+     */
+    public File locate(String name) {
+        return index().get(name);
+    }
+
+    /**
+     * @param processedName name of the processed report
+     * @return true if the report is archived either as is or compressed
+     */
+    public boolean contains(String processedName) {
+        final Map<String, File> files = index();
+        return files.containsKey(processedName) || files.containsKey(processedName + ReportFiles.GZ);
+    }
+
+    /**
+     * @return all archived files
+     */
+    public List<File> files() {
+        return new ArrayList<>(index().values());
+    }
+
+    File shardOf(Instant created) {
+        final ZonedDateTime time = created.atZone(zone);
+        return new File(new File(directory, String.format("%04d", time.getYear())),
+                String.format("%02d", time.getMonthValue()));
+    }
+
+    private Map<String, File> index() {
+        Map<String, File> result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    result = new ConcurrentHashMap<>();
+                    for (File file : listShardFiles()) {
+                        result.put(file.getName(), file);
+                    }
+                    log.info("Indexed {} archived reports in {}", result.size(), directory);
+                    index = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private List<File> listShardFiles() {
+        final File[] years = directory.listFiles(File::isDirectory);
+        if (years == null) {
+            return List.of();
+        }
+        return Arrays.stream(years)
+                .map(year -> year.listFiles(File::isDirectory))
+                .filter(Objects::nonNull)
+                .flatMap(Arrays::stream)
+                .map(month -> month.listFiles(file -> file.isFile() && !file.getName().startsWith(TEMP_PREFIX)))
+                .filter(Objects::nonNull)
+                .flatMap(Arrays::stream)
+                .sorted(Comparator.naturalOrder())
+                .toList();
+    }
+}
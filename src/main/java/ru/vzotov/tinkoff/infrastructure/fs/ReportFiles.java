@@ -0,0 +1,215 @@
+package ru.vzotov.tinkoff.infrastructure.fs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Naming rules and decoding of report files.
+ * <p>
+ * Reports are stored as {@code <name>.csv} or {@code <name>.ofx}, optionally compressed as
+ * {@code <name>.csv.gz}, {@code <name>.ofx.gz} or as a zip archive {@code <name>.zip} with a single report entry.
+ * Processed reports are renamed to {@code <name>_processed.<extension>}.
+ */
+final class ReportFiles {
+
+    enum Format {
+        CSV(".csv"),
+        OFX(".ofx");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        String extension() {
+            return extension;
+        }
+
+        static Format of(String name) {
+            final String lowerCaseName = name.toLowerCase();
+            for (Format format : values()) {
+                if (lowerCaseName.endsWith(format.extension) ||
+                        lowerCaseName.endsWith(format.extension + GZ)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown format of report " + name);
+        }
+    }
+
+    /**
+     * Decoded content of a report
+     */
+    record Content(Format format, InputStream stream) implements Closeable {
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    static final String GZ = ".gz";
+    static final String ZIP = ".zip";
+    static final String PROCESSED = "_processed";
+
+    /**
+     * Known extensions, compound extensions go first
+     */
+    private static final List<String> EXTENSIONS = List.of(
+            Format.CSV.extension() + GZ, Format.OFX.extension() + GZ,
+            Format.CSV.extension(), Format.OFX.extension(),
+            ZIP);
+
+    private ReportFiles() {
+    }
+
+    static List<String> extensions() {
+        return EXTENSIONS;
+    }
+
+    /**
+     * @param name name of the file
+     * @return extension of the report file or null if the file is not a report
+     */
+    static String extensionOf(String name) {
+        final String lowerCaseName = name.toLowerCase();
+        return EXTENSIONS.stream().filter(lowerCaseName::endsWith).findFirst().orElse(null);
+    }
+
+    static boolean isReport(String name) {
+        return extensionOf(name) != null;
+    }
+
+    static String baseNameOf(String name) {
+        final String extension = extensionOf(name);
+        return extension == null ? name : name.substring(0, name.length() - extension.length());
+    }
+
+    static boolean isProcessed(String name) {
+        return isReport(name) && baseNameOf(name).toLowerCase().endsWith(PROCESSED);
+    }
+
+    static String processedName(String name) {
+        final String extension = extensionOf(name);
+        return baseNameOf(name) + PROCESSED + (extension == null ? "" : extension);
+    }
+
+    static boolean isCompressed(String name) {
+        final String lowerCaseName = name.toLowerCase();
+        return lowerCaseName.endsWith(GZ) || lowerCaseName.endsWith(ZIP);
+    }
+
+    /**
+     * Estimates the size of the decoded content without decoding it. The gzip trailer keeps the size
+     * of the content modulo 2^32, and the central directory of a zip archive keeps the size of its entry.
+     *
+     * @param file report file
+     * @return size of the decoded content in bytes, the size of the file if the content size is not known
+     * @throws IOException if the file can not be read
+     */
+    static long decodedSizeOf(File file) throws IOException {
+        final String lowerCaseName = file.getName().toLowerCase();
+        if (lowerCaseName.endsWith(GZ) && file.length() >= Integer.BYTES) {
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                in.seek(file.length() - Integer.BYTES);
+                final long size = Integer.toUnsignedLong(Integer.reverseBytes(in.readInt()));
+                // the size of content over 4 GiB wraps around
+                return Math.max(size, file.length());
+            }
+        } else if (lowerCaseName.endsWith(ZIP)) {
+            try (ZipFile zip = new ZipFile(file)) {
+                final Enumeration<? extends ZipEntry> entries = zip.entries();
+                final long size = entries.hasMoreElements() ? entries.nextElement().getSize() : -1;
+                return size < 0 ? file.length() : size;
+            }
+        }
+        return file.length();
+    }
+
+    static Content open(File file) throws IOException {
+        return open(file.getName(), new FileInputStream(file));
+    }
+
+    /**
+     * Decodes the raw content of the report file with the given name
+     *
+     * @param name name of the report file
+     * @param raw  raw content of the file
+     * @return decoded content
+     * @throws IOException if the compressed content is invalid
+     */
+    static Content open(String name, InputStream raw) throws IOException {
+        final String lowerCaseName = name.toLowerCase();
+        try {
+            if (lowerCaseName.endsWith(GZ)) {
+                return new Content(Format.of(name), new GZIPInputStream(raw));
+            } else if (lowerCaseName.endsWith(ZIP)) {
+                final ZipInputStream zip = new ZipInputStream(raw);
+                final ZipEntry entry = zip.getNextEntry();
+                if (entry == null || entry.isDirectory()) {
+                    throw new ZipException("Zip report " + name + " must contain a single report file");
+                }
+                return new Content(Format.of(entry.getName()), new SingleEntryInputStream(name, zip));
+            } else {
+                return new Content(Format.of(name), raw);
+            }
+        } catch (IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Content of the first zip entry, which fails at the end of the entry if the archive has more entries
+     */
+    private static class SingleEntryInputStream extends FilterInputStream {
+
+        private final String name;
+
+        private boolean verified;
+
+        SingleEntryInputStream(String name, ZipInputStream zip) {
+            super(zip);
+            this.name = name;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int result = super.read();
+            if (result < 0) {
+                verify();
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int result = super.read(b, off, len);
+            if (result < 0) {
+                verify();
+            }
+            return result;
+        }
+
+        private void verify() throws IOException {
+            if (!verified) {
+                verified = true;
+                if (((ZipInputStream) in).getNextEntry() != null) {
+                    throw new ZipException("Zip report " + name + " must contain a single report file");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ru.vzotov.tinkoff.infrastructure.fs;
+
+import ru.vzotov.banking.domain.model.AccountNumber;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Compact binary form of {@link TinkoffOperation}.
+ * Nullable fields are prefixed with a presence flag, dates are stored as epoch seconds and days.
+ */
+public final class TinkoffOperationCodec {
+
+    private TinkoffOperationCodec() {
+    }
+
+    public static void write(DataOutput out, TinkoffOperation operation) throws IOException {
+        writeString(out, operation.accountNumber() == null ? null : operation.accountNumber().number());
+        out.writeLong(operation.operationDate().toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(operation.operationDate().getNano());
+        out.writeBoolean(operation.paymentDate() != null);
+        if (operation.paymentDate() != null) {
+            out.writeLong(operation.paymentDate().toEpochDay());
+        }
+        writeString(out, operation.cardNumber());
+        out.writeDouble(operation.operationAmount());
+        out.writeUTF(operation.operationCurrency());
+        out.writeDouble(operation.paymentAmount());
+        out.writeUTF(operation.paymentCurrency());
+        writeDouble(out, operation.cashBack());
+        writeString(out, operation.category());
+        writeString(out, operation.mcc());
+        out.writeUTF(operation.description());
+        writeDouble(out, operation.bonus());
+    }
+
+    public static TinkoffOperation read(DataInput in) throws IOException {
+        final String accountNumber = readString(in);
+        final LocalDateTime operationDate = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        final LocalDate paymentDate = in.readBoolean() ? LocalDate.ofEpochDay(in.readLong()) : null;
+        return new TinkoffOperation(
+                accountNumber == null ? null : new AccountNumber(accountNumber),
+                operationDate,
+                paymentDate,
+                readString(in),
+                in.readDouble(),
+                in.readUTF(),
+                in.readDouble(),
+                in.readUTF(),
+                readDouble(in),
+                readString(in),
+                readString(in),
+                in.readUTF(),
+                readDouble(in)
+        );
+    }
+
+    /**
+     * @return estimated size of the operation in memory, in bytes
+     */
+    public static long sizeOf(TinkoffOperation operation) {
+        return 160 + 2L * (length(operation.cardNumber()) + length(operation.category()) + length(operation.mcc())
+                + length(operation.description()) + length(operation.operationCurrency())
+                + length(operation.paymentCurrency()));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeDouble(DataOutput out, Double value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static Double readDouble(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readDouble() : null;
+    }
+}
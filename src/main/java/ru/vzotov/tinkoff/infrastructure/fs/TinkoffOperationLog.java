@@ -0,0 +1,371 @@
+package ru.vzotov.tinkoff.infrastructure.fs;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Append-only log of parsed operations, tagged with the report they come from.
+ * <p>
+ * The log is a sequence of fixed-size segment files written through memory mapping. A record is
+ * {@code [int length][long recorded at][UTF report name][operation]}, a zero length marks the end of
+ * written data in a segment. When the active segment is full, the next one is started. Sealed segments
+ * can be compacted, which drops operations re-delivered by overlapping reports.
+ */
+public class TinkoffOperationLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(TinkoffOperationLog.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String COMPACTION = "compaction";
+
+    private static final String COMPLETE = "COMPLETE";
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private long activeSequence;
+
+    private FileChannel activeChannel;
+
+    private MappedByteBuffer active;
+
+    /**
+     * @param directory   directory of segment files
+     * @param segmentSize size of a segment file in bytes
+     */
+    public TinkoffOperationLog(File directory, int segmentSize) {
+        Validate.notNull(directory);
+        Validate.isTrue(segmentSize > Integer.BYTES, "Invalid segment size %s", segmentSize);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Validate.isTrue(directory.isDirectory() || directory.mkdirs(), "Unable to create directory %s", directory);
+        recoverCompaction();
+
+        final List<Long> sequences = sequences(directory);
+        try {
+            open(sequences.isEmpty() ? 0 : sequences.get(sequences.size() - 1));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open operation log " + directory, e);
+        }
+        log.info("Opened operation log {} at segment {}, position {}", directory, activeSequence, active.position());
+    }
+
+    /**
+     * Appends operations of the report to the log
+     *
+     * @param reportId   report
+     * @param operations operations of the report
+     */
+    public synchronized void append(AccountReportId reportId, List<TinkoffOperation> operations) {
+        Validate.notNull(reportId);
+        Validate.notNull(operations);
+        final long recordedAt = System.currentTimeMillis();
+        try {
+            for (TinkoffOperation operation : operations) {
+                final byte[] record = encode(recordedAt, reportId.name(), operation);
+                Validate.isTrue(Integer.BYTES + record.length <= segmentSize,
+                        "Record of %s bytes exceeds segment size %s", record.length, segmentSize);
+                if (active.remaining() < Integer.BYTES + record.length) {
+                    active.force();
+                    open(activeSequence + 1);
+                }
+                active.putInt(record.length);
+                active.put(record);
+            }
+            active.force();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to append operations of report " + reportId.name(), e);
+        }
+    }
+
+    /**
+     * Replays the log in the order of records.
+     * Consecutive records of the same report are passed to the consumer at once.
+     *
+     * @param consumer consumer of operations of each report
+     */
+    public synchronized void replay(BiConsumer<AccountReportId, List<TinkoffOperation>> consumer) {
+        Validate.notNull(consumer);
+        final Batch batch = new Batch(consumer);
+        try {
+            for (long sequence : sequences(directory)) {
+                read(segmentFile(directory, sequence), (header, operation) -> batch.add(header, decode(operation)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to replay operation log " + directory, e);
+        }
+        batch.flush();
+    }
+
+    /**
+     * Rewrites sealed segments, keeping the first record of each operation
+     *
+     * @return number of dropped records
+     */
+    public synchronized int compact() {
+        final List<Long> sealed = sequences(directory).stream().filter(s -> s < activeSequence).toList();
+        if (sealed.isEmpty()) {
+            return 0;
+        }
+
+        final File compactionDirectory = new File(directory, COMPACTION);
+        final Set<Long> seen = new HashSet<>();
+        final int[] dropped = {0};
+        try {
+            deleteDirectory(compactionDirectory);
+            Files.createDirectories(compactionDirectory.toPath());
+            try (SegmentWriter writer = new SegmentWriter(compactionDirectory, sealed.get(0))) {
+                for (long sequence : sealed) {
+                    read(segmentFile(directory, sequence), (header, operation) -> {
+                        if (seen.add(fingerprintOf(operation))) {
+                            writer.write(header, operation);
+                        } else {
+                            dropped[0]++;
+                        }
+                    });
+                }
+                Validate.validState(writer.sequence < activeSequence,
+                        "Compacted segments overlap the active segment %s", activeSequence);
+            }
+            Files.writeString(new File(compactionDirectory, COMPLETE).toPath(),
+                    sealed.get(0) + " " + sealed.get(sealed.size() - 1));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to compact operation log " + directory, e);
+        }
+
+        recoverCompaction();
+        log.info("Compacted {} segments of operation log {}, dropped {} records", sealed.size(), directory, dropped[0]);
+        return dropped[0];
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        active.force();
+        activeChannel.close();
+    }
+
+    /**
+     * Completes a compaction interrupted after its output was written, or discards an incomplete one
+     */
+    private void recoverCompaction() {
+        final File compactionDirectory = new File(directory, COMPACTION);
+        final File complete = new File(compactionDirectory, COMPLETE);
+        try {
+            if (complete.exists()) {
+                final long[] range = Arrays.stream(Files.readString(complete.toPath()).trim().split(" "))
+                        .mapToLong(Long::parseLong).toArray();
+                for (long sequence : sequences(directory)) {
+                    if (sequence >= range[0] && sequence <= range[1]) {
+                        Files.delete(segmentFile(directory, sequence).toPath());
+                    }
+                }
+                for (long sequence : sequences(compactionDirectory)) {
+                    Files.move(segmentFile(compactionDirectory, sequence).toPath(),
+                            segmentFile(directory, sequence).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            deleteDirectory(compactionDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to complete compaction of operation log " + directory, e);
+        }
+    }
+
+    /**
+     * Makes the segment active, positioned after its last record
+     */
+    private void open(long sequence) throws IOException {
+        if (activeChannel != null) {
+            activeChannel.close();
+        }
+        activeSequence = sequence;
+        activeChannel = FileChannel.open(segmentFile(directory, sequence).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        while (active.remaining() >= Integer.BYTES) {
+            final int length = active.getInt(active.position());
+            if (length <= 0 || length > active.remaining() - Integer.BYTES) {
+                break;
+            }
+            active.position(active.position() + Integer.BYTES + length);
+        }
+    }
+
+    private static void read(File segment, RecordConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buffer.remaining() >= Integer.BYTES) {
+                final int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                final byte[] record = new byte[length];
+                buffer.get(record);
+                final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+                final Header header = new Header(in.readLong(), in.readUTF());
+                consumer.accept(header, Arrays.copyOfRange(record, length - in.available(), length));
+            }
+        }
+    }
+
+    private static byte[] encode(long recordedAt, String reportName, TinkoffOperation operation) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(recordedAt);
+        out.writeUTF(reportName);
+        TinkoffOperationCodec.write(out, operation);
+        return bytes.toByteArray();
+    }
+
+    private static TinkoffOperation decode(byte[] operation) throws IOException {
+        return TinkoffOperationCodec.read(new DataInputStream(new ByteArrayInputStream(operation)));
+    }
+
+    private static long fingerprintOf(byte[] operation) {
+        return ByteBuffer.wrap(DigestUtils.md5Digest(operation)).getLong();
+    }
+
+    private static List<Long> sequences(File directory) {
+        final String[] names = directory.list((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (names == null) {
+            return List.of();
+        }
+        return Arrays.stream(names)
+                .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                .sorted()
+                .toList();
+    }
+
+    private static File segmentFile(File directory, long sequence) {
+        return new File(directory, String.format("%012d%s", sequence, SEGMENT_SUFFIX));
+    }
+
+    private static void deleteDirectory(File directory) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(directory.toPath());
+    }
+
+    private record Header(long recordedAt, String reportName) {
+    }
+
+    @FunctionalInterface
+    private interface RecordConsumer {
+        void accept(Header header, byte[] operation) throws IOException;
+    }
+
+    /**
+     * Collects consecutive records of the same report
+     */
+    private static class Batch {
+
+        private final BiConsumer<AccountReportId, List<TinkoffOperation>> consumer;
+
+        private Header header;
+
+        private List<TinkoffOperation> operations = new ArrayList<>();
+
+        Batch(BiConsumer<AccountReportId, List<TinkoffOperation>> consumer) {
+            this.consumer = consumer;
+        }
+
+        void add(Header header, TinkoffOperation operation) {
+            if (!Objects.equals(this.header, header)) {
+                flush();
+                this.header = header;
+            }
+            operations.add(operation);
+        }
+
+        void flush() {
+            if (header != null && !operations.isEmpty()) {
+                consumer.accept(new AccountReportId(header.reportName(), Instant.ofEpochMilli(header.recordedAt())),
+                        operations);
+                operations = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Writes records to consecutive segments of a directory
+     */
+    private class SegmentWriter implements Closeable {
+
+        private final File target;
+
+        private long sequence;
+
+        private FileChannel channel;
+
+        private MappedByteBuffer buffer;
+
+        SegmentWriter(File target, long sequence) throws IOException {
+            this.target = target;
+            this.sequence = sequence;
+            map();
+        }
+
+        void write(Header header, byte[] operation) throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(operation.length + 64);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(header.recordedAt());
+            out.writeUTF(header.reportName());
+            out.write(operation);
+            final byte[] record = bytes.toByteArray();
+            if (buffer.remaining() < Integer.BYTES + record.length) {
+                close();
+                sequence++;
+                map();
+            }
+            buffer.putInt(record.length);
+            buffer.put(record);
+        }
+
+        private void map() throws IOException {
+            channel = FileChannel.open(segmentFile(target, sequence).toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        @Override
+        public void close() throws IOException {
+            buffer.force();
+            channel.close();
+        }
+    }
+}
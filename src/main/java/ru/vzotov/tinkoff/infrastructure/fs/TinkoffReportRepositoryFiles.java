@@ -9,7 +9,9 @@ import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
@@ -19,25 +21,35 @@ import ru.vzotov.accounting.domain.model.AccountReportId;
 import ru.vzotov.accounting.domain.model.AccountReportRepository;
 import ru.vzotov.banking.domain.model.AccountNumber;
 import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportRepository;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportUpload;
+import ru.vzotov.tinkoff.domain.model.TinkoffRowFilter;
+import ru.vzotov.tinkoff.infrastructure.jfr.ReportDiscoveredEvent;
+import ru.vzotov.tinkoff.infrastructure.jfr.ReportParseEvent;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.ParseException;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
@@ -46,17 +58,24 @@ import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.format.DateTimeParseException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
+import java.util.zip.ZipException;
 
 import static java.time.temporal.ChronoField.DAY_OF_MONTH;
 import static java.time.temporal.ChronoField.HOUR_OF_DAY;
@@ -69,14 +88,12 @@ import static java.util.Objects.requireNonNull;
 import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
 import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
 
-public class TinkoffReportRepositoryFiles implements AccountReportRepository<TinkoffOperation> {
+public class TinkoffReportRepositoryFiles implements TinkoffReportRepository {
 
     private static final Logger log = LoggerFactory.getLogger(AccountReportRepository.class);
 
-    private static final String CSV = ".csv";
-    private static final String OFX = ".ofx";
-    private static final String CSV_PROCESSED = "_processed.csv";
-    private static final String OFX_PROCESSED = "_processed.ofx";
+    private static final String CONTENT_INDEX = ".content-index";
+    private static final String UPLOAD_PREFIX = ".upload-";
 
     private static final DateTimeFormatter DATE_FORMAT = new DateTimeFormatterBuilder()
             .appendValue(DAY_OF_MONTH, 2)
@@ -102,6 +119,14 @@ public class TinkoffReportRepositoryFiles implements AccountReportRepository<Tin
 
     public static final ZoneId TINKOFF_TZ = ZoneId.of("Europe/Moscow");
 
+    /**
+     * Shared by all OFX reports, so the first report does not pay for the discovery of the StAX implementation
+     * and the introspection of statement records
+     */
+    private static final XMLInputFactory OFX_INPUT_FACTORY = XMLInputFactory.newFactory();
+
+    private static final XmlMapper OFX_MAPPER = new XmlMapper();
+
     private static final Function<File, AccountReportId> ID_OF = file -> {
         try {
             BasicFileAttributes basicFileAttributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
@@ -118,18 +143,45 @@ public class TinkoffReportRepositoryFiles implements AccountReportRepository<Tin
 
     private final boolean readOnly;
 
+    /**
+     * Storage of processed reports. When null, processed reports are kept in the base directory.
+     */
+    private final ReportArchive archive;
+
+    private final ContentHashIndex contentIndex;
+
+    /**
+     * Names of unprocessed reports already reported by {@link ReportDiscoveredEvent}
+     */
+    private final Set<String> discovered = ConcurrentHashMap.newKeySet();
+
     public TinkoffReportRepositoryFiles(String baseDirectoryPath) {
         this(baseDirectoryPath, false);
     }
 
     public TinkoffReportRepositoryFiles(String baseDirectoryPath, boolean readOnly) {
+        this(baseDirectoryPath, readOnly, null);
+    }
+
+    public TinkoffReportRepositoryFiles(String baseDirectoryPath, boolean readOnly, ReportArchive archive) {
         this.baseDirectoryPath = baseDirectoryPath;
         this.baseDirectory = new File(baseDirectoryPath);
         this.readOnly = readOnly;
+        this.archive = archive;
+        this.contentIndex = new ContentHashIndex(new File(this.baseDirectory, CONTENT_INDEX),
+                () -> findAll().stream().map(id -> reportFileOf(id.name())).toList(), this::isStored);
         log.info("Checking base directory permissions {}...", this.baseDirectory.getAbsolutePath());
         Validate.isTrue(this.baseDirectory.isDirectory());
         Validate.isTrue(this.baseDirectory.canRead());
         log.info("The permissions for the base directory are valid");
+
+        if (archive != null && !readOnly) {
+            archiveProcessed();
+        }
+        if (!readOnly) {
+            // the first upload does not wait for the contents of all reports to be hashed
+            contentIndex.open();
+        }
     }
 
     protected String getBaseDirectoryPath() {
@@ -140,73 +192,128 @@ public class TinkoffReportRepositoryFiles implements AccountReportRepository<Tin
         return baseDirectory;
     }
 
+    protected ReportArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Moves processed reports left in the base directory to the archive
+     */
+    private void archiveProcessed() {
+        final FileFilter filter = pathname -> ReportFiles.isProcessed(pathname.getName());
+        final File[] processed = requireNonNull(this.getBaseDirectory().listFiles(filter));
+        for (File file : processed) {
+            try {
+                archive.archive(file, file.getName());
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to archive processed report " + file.getName(), e);
+            }
+        }
+        if (processed.length > 0) {
+            log.info("Moved {} processed reports to archive {}", processed.length, archive.directory());
+        }
+    }
+
+    /**
+     * Finds report file by its name either in the base directory or in the archive
+     */
+    private File reportFileOf(String name) {
+        final File reportFile = new File(this.getBaseDirectory(), name);
+        if (archive != null && !reportFile.exists()) {
+            final File archivedFile = archive.locate(name);
+            if (archivedFile != null) {
+                return archivedFile;
+            }
+        }
+        return reportFile;
+    }
+
+    static InputStream openReport(File reportFile) throws IOException {
+        return ReportFiles.open(reportFile).stream();
+    }
+
     @Override
     public AccountReport<TinkoffOperation> find(final AccountReportId reportId) {
+        return find(reportId, TinkoffRowFilter.NONE);
+    }
+
+    @Override
+    public AccountReport<TinkoffOperation> find(final AccountReportId reportId, final TinkoffRowFilter filter) {
         Validate.notNull(reportId);
-        final File reportFile = new File(this.getBaseDirectory(), reportId.name());
+        Validate.notNull(filter);
+        final File reportFile = reportFileOf(reportId.name());
         Validate.isTrue(reportFile.exists() && reportFile.canRead());
 
-        final String name = reportId.name().toLowerCase();
-        if (name.endsWith(CSV)) {
-            return parseCSV(reportId, reportFile);
-        } else if (name.endsWith(OFX)) {
-            return parseOFX(reportId, reportFile);
+        try (ReportFiles.Content content = ReportFiles.open(reportFile)) {
+            final ReportParseEvent event = ReportParseEvent.begin(reportId, content.format().name(), reportFile.length());
+            final AccountReport<TinkoffOperation> report = parse(reportId, content, filter);
+            event.finish(report.operations().size());
+            return report;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
         }
-        throw new IllegalArgumentException();
+    }
+
+    @Override
+    public Stream<TinkoffOperation> stream(final AccountReportId reportId) {
+        Validate.notNull(reportId);
+        final File reportFile = reportFileOf(reportId.name());
+        Validate.isTrue(reportFile.exists() && reportFile.canRead());
+
+        final ReportFiles.Content content;
+        try {
+            content = ReportFiles.open(reportFile);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            final ReportParseEvent event = ReportParseEvent.begin(reportId, content.format().name(), reportFile.length());
+            final int[] rows = {0};
+            final Stream<TinkoffOperation> operations = switch (content.format()) {
+                case CSV -> streamCSV(content.stream(), TinkoffRowFilter.NONE);
+                case OFX -> streamOFX(content.stream(), TinkoffRowFilter.NONE);
+            };
+            return operations.peek(operation -> rows[0]++).onClose(() -> {
+                event.finish(rows[0]);
+                IOUtils.closeQuietly(content);
+            });
+        } catch (RuntimeException e) {
+            IOUtils.closeQuietly(content);
+            throw e;
+        }
+    }
+
+    AccountReport<TinkoffOperation> parse(final AccountReportId reportId, final ReportFiles.Content content) {
+        return parse(reportId, content, TinkoffRowFilter.NONE);
+    }
+
+    AccountReport<TinkoffOperation> parse(final AccountReportId reportId, final ReportFiles.Content content,
+                                          final TinkoffRowFilter filter) {
+        final Stream<TinkoffOperation> operations = switch (content.format()) {
+            case CSV -> streamCSV(content.stream(), filter);
+            case OFX -> streamOFX(content.stream(), filter);
+        };
+        return new AccountReport<>(reportId, operations.collect(Collectors.toList()));
     }
 
     AccountReport<TinkoffOperation> parseOFX(final AccountReportId reportId, final File reportFile) {
-        final XMLInputFactory f = XMLInputFactory.newFactory();
-        try (final FileInputStream stream = new FileInputStream(reportFile)) {
-            final XMLStreamReader sr = f.createXMLStreamReader(stream);
-            final XmlMapper mapper = new XmlMapper();
-            final List<TinkoffOperation> operations = new ArrayList<>();
-            String tagName;
-            AccountNumber currentAccount = null;
-            while (sr.hasNext()) {
-                int eventType = sr.next();
-                switch (eventType) {
-                    case START_ELEMENT -> {
-                        tagName = sr.getName().getLocalPart();
-                        if ("BANKACCTFROM".equalsIgnoreCase(tagName)) {
-                            final OfxBankAccount account = mapper.readValue(sr, OfxBankAccount.class);
-                            currentAccount = new AccountNumber(account.accountId);
-                        } else if ("STMTRS".equalsIgnoreCase(tagName)) {
-                            currentAccount = null;
-                        } else if ("STMTTRN".equalsIgnoreCase(tagName)) {
-                            final Statement stmt = mapper.readValue(sr, Statement.class);
-
-                            final LocalDateTime operationDateTime = stmt.dateTime.toInstant()
-                                    .atZone(TINKOFF_TZ).toLocalDateTime();
-                            final TinkoffOperation operation = new TinkoffOperation(
-                                    currentAccount,
-                                    operationDateTime,
-                                    operationDateTime.toLocalDate(),
-                                    null,
-                                    stmt.amount().doubleValue(),
-                                    mapCurrency(stmt.currency().code()),
-                                    stmt.amount().doubleValue(),
-                                    mapCurrency(stmt.currency().code()),
-                                    null,
-                                    stmt.memo(),
-                                    null,
-                                    stmt.fitId() + " " + stmt.name(),
-                                    null
-                            );
-                            operations.add(operation);
-                        }
-                    }
-                    case END_ELEMENT -> {
-                        tagName = sr.getName().getLocalPart();
-                        if ("STMTRS".equalsIgnoreCase(tagName)) {
-                            currentAccount = null;
-                        }
-                    }
-                }
-            }
+        try (final InputStream stream = openReport(reportFile)) {
+            return parseOFX(reportId, stream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    AccountReport<TinkoffOperation> parseOFX(final AccountReportId reportId, final InputStream stream) {
+        return new AccountReport<>(reportId, streamOFX(stream, TinkoffRowFilter.NONE).collect(Collectors.toList()));
+    }
 
-            return new AccountReport<>(reportId, operations);
-        } catch (XMLStreamException | IOException e) {
+    Stream<TinkoffOperation> streamOFX(final InputStream stream, final TinkoffRowFilter filter) {
+        try {
+            final Iterator<TinkoffOperation> operations =
+                    new OfxOperationIterator(OFX_INPUT_FACTORY.createXMLStreamReader(stream), filter);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(operations, Spliterator.ORDERED), false);
+        } catch (XMLStreamException e) {
             throw new IllegalStateException(e);
         }
     }
@@ -222,7 +329,22 @@ public class TinkoffReportRepositoryFiles implements AccountReportRepository<Tin
     }
 
     AccountReport<TinkoffOperation> parseCSV(final AccountReportId reportId, final File reportFile) {
-        try (Reader in = new InputStreamReader(new FileInputStream(reportFile), Charset.forName("Cp1251"))) {
+        try (InputStream stream = openReport(reportFile)) {
+            return parseCSV(reportId, stream);
+        } catch (FileNotFoundException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    AccountReport<TinkoffOperation> parseCSV(final AccountReportId reportId, final InputStream stream) {
+        return new AccountReport<>(reportId, streamCSV(stream, TinkoffRowFilter.NONE).collect(Collectors.toList()));
+    }
+
+    Stream<TinkoffOperation> streamCSV(final InputStream stream, final TinkoffRowFilter filter) {
+        try {
+            final Reader in = new InputStreamReader(stream, Charset.forName("Cp1251"));
             final CSVFormat csvFormat = CSVFormat.Builder.create(CSVFormat.Predefined.Default.getFormat())
                     .setDelimiter(';')
                     .setTrailingDelimiter(false)
@@ -231,49 +353,54 @@ public class TinkoffReportRepositoryFiles implements AccountReportRepository<Tin
                     .build();
 
             Iterable<CSVRecord> records = csvFormat.parse(in);
-            final List<TinkoffOperation> operations = StreamSupport.stream(records.spliterator(), false).map(record -> {
-                final String status = record.get("Статус");
-                if ("FAILED".equalsIgnoreCase(status)) return null;
-
-                final DecimalFormat decimals = createDecimalFormat(new Locale("ru"));
-                final LocalDateTime operationDateTime = LocalDateTime.parse(record.get("Дата операции"), DATETIME_FORMAT);
-                final LocalDate paymentDate = max(parseDateOrNull(record.get("Дата платежа")), operationDateTime.toLocalDate());
-                final String cardNumber = StringUtils.trimToNull(record.get("Номер карты"));
-                final double operationAmount = parseDoubleOrNull(record.get("Сумма операции"), decimals);
-                final String operationCurrency = mapCurrency(record.get("Валюта операции"));
-                final double paymentAmount = parseDoubleOrNull(record.get("Сумма платежа"), decimals);
-                final String paymentCurrency = mapCurrency(record.get("Валюта платежа"));
-                final Double cashBack = parseDoubleOrNull(record.get("Кэшбэк"), decimals);
-                final String category = record.get("Категория");
-                final String mcc = record.get("MCC");
-                final String description = record.get("Описание");
-                final double bonus = parseDoubleOrNull(record.get("Бонусы (включая кэшбэк)"), decimals);
-
-                return new TinkoffOperation(
-                        null,
-                        operationDateTime,
-                        paymentDate,
-                        cardNumber,
-                        operationAmount,
-                        operationCurrency,
-                        paymentAmount,
-                        paymentCurrency,
-                        cashBack,
-                        category,
-                        (mcc == null || mcc.isEmpty()) ? null : mcc,
-                        description,
-                        bonus
-                );
-            }).filter(Objects::nonNull).collect(Collectors.toList());
-
-            return new AccountReport<>(reportId, operations);
-        } catch (FileNotFoundException e) {
-            throw new IllegalStateException(e);
+            return StreamSupport.stream(records.spliterator(), false)
+                    .map(record -> operationOf(record, filter))
+                    .filter(Objects::nonNull);
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
+    /**
+     * @return operation of the CSV record, null for failed operations and rows skipped by the filter
+     */
+    private static TinkoffOperation operationOf(CSVRecord record, TinkoffRowFilter filter) {
+        final String status = record.get("Статус");
+        if ("FAILED".equalsIgnoreCase(status)) return null;
+
+        final LocalDateTime operationDateTime = LocalDateTime.parse(record.get("Дата операции"), DATETIME_FORMAT);
+        final String cardNumber = StringUtils.trimToNull(record.get("Номер карты"));
+        final String operationCurrency = mapCurrency(record.get("Валюта операции"));
+        if (filter.skip(cardNumber, null, operationCurrency, operationDateTime)) return null;
+
+        final DecimalFormat decimals = createDecimalFormat(new Locale("ru"));
+        final LocalDate paymentDate = max(parseDateOrNull(record.get("Дата платежа")), operationDateTime.toLocalDate());
+        final double operationAmount = parseDoubleOrNull(record.get("Сумма операции"), decimals);
+        final double paymentAmount = parseDoubleOrNull(record.get("Сумма платежа"), decimals);
+        final String paymentCurrency = mapCurrency(record.get("Валюта платежа"));
+        final Double cashBack = parseDoubleOrNull(record.get("Кэшбэк"), decimals);
+        final String category = record.get("Категория");
+        final String mcc = record.get("MCC");
+        final String description = record.get("Описание");
+        final double bonus = parseDoubleOrNull(record.get("Бонусы (включая кэшбэк)"), decimals);
+
+        return new TinkoffOperation(
+                null,
+                operationDateTime,
+                paymentDate,
+                cardNumber,
+                operationAmount,
+                operationCurrency,
+                paymentAmount,
+                paymentCurrency,
+                cashBack,
+                category,
+                (mcc == null || mcc.isEmpty()) ? null : mcc,
+                description,
+                bonus
+        );
+    }
+
     static Double parseDoubleOrNull(String doubleString, DecimalFormat decimals) {
         if (doubleString == null || doubleString.isEmpty()) {
             return null;
@@ -311,13 +438,11 @@ public class TinkoffReportRepositoryFiles implements AccountReportRepository<Tin
 
     @Override
     public List<AccountReportId> findAll() {
-        final FileFilter filter = pathname -> {
-            final String name = pathname.getName().toLowerCase();
-            return name.endsWith(CSV) || name.endsWith(OFX);
-        };
+        final FileFilter filter = pathname -> ReportFiles.isReport(pathname.getName());
 
-        return Arrays.stream(requireNonNull(this.getBaseDirectory().listFiles(filter)))
-                .sorted(Comparator.naturalOrder())
+        final Stream<File> archived = archive == null ? Stream.empty() : archive.files().stream();
+        return Stream.concat(Arrays.stream(requireNonNull(this.getBaseDirectory().listFiles(filter))), archived)
+                .sorted(Comparator.comparing(File::getName))
                 .map(ID_OF)
                 .collect(Collectors.toList());
 
@@ -325,16 +450,45 @@ public class TinkoffReportRepositoryFiles implements AccountReportRepository<Tin
 
     @Override
     public List<AccountReportId> findUnprocessed() {
-        final FileFilter filter = pathname -> {
-            final String name = pathname.getName().toLowerCase();
-            return (name.endsWith(CSV) && !name.endsWith(CSV_PROCESSED)) ||
-                    (name.endsWith(OFX) && !name.endsWith(OFX_PROCESSED));
-        };
+        final FileFilter filter = pathname -> ReportFiles.isReport(pathname.getName()) &&
+                !ReportFiles.isProcessed(pathname.getName());
 
-        return Arrays.stream(requireNonNull(this.getBaseDirectory().listFiles(filter)))
+        final List<AccountReportId> result = Arrays.stream(requireNonNull(this.getBaseDirectory().listFiles(filter)))
                 .sorted(Comparator.naturalOrder())
                 .map(ID_OF)
                 .collect(Collectors.toList());
+        // a report is discovered once, not on every scan of the inbox
+        discovered.retainAll(result.stream().map(AccountReportId::name).toList());
+        for (AccountReportId reportId : result) {
+            if (discovered.add(reportId.name())) {
+                ReportDiscoveredEvent.emit(reportId);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isUnprocessed(AccountReportId reportId) {
+        Validate.notNull(reportId);
+        return !ReportFiles.isProcessed(reportId.name()) && new File(this.getBaseDirectory(), reportId.name()).exists();
+    }
+
+    @Override
+    public long sizeOf(AccountReportId reportId) {
+        Validate.notNull(reportId);
+        return reportFileOf(reportId.name()).length();
+    }
+
+    @Override
+    public long decodedSizeOf(AccountReportId reportId) {
+        Validate.notNull(reportId);
+        final File reportFile = reportFileOf(reportId.name());
+        try {
+            return ReportFiles.decodedSizeOf(reportFile);
+        } catch (IOException e) {
+            log.warn("Unable to read the content size of report {}", reportId.name());
+            return reportFile.length();
+        }
     }
 
     @Override
@@ -343,20 +497,22 @@ public class TinkoffReportRepositoryFiles implements AccountReportRepository<Tin
 
         final File reportFile = new File(this.getBaseDirectory(), reportId.name());
 
-        final boolean isCsv = reportId.name().toLowerCase().endsWith(CSV);
-        final String baseName = FilenameUtils.removeExtension(reportId.name());
-
         final File processedReportFile = new File(
                 this.getBaseDirectory(),
-                baseName + (isCsv ? CSV_PROCESSED : OFX_PROCESSED)
+                ReportFiles.processedName(reportId.name())
         );
 
         Validate.isTrue(reportFile.exists() && reportFile.canRead() && reportFile.canWrite());
         Validate.isTrue(!processedReportFile.exists());
+        Validate.isTrue(archive == null || !archive.contains(processedReportFile.getName()));
 
         try {
             if (!readOnly) {
-                FileUtils.moveFile(reportFile, processedReportFile);
+                if (archive == null) {
+                    FileUtils.moveFile(reportFile, processedReportFile);
+                } else {
+                    archive.archive(reportFile, processedReportFile.getName());
+                }
             }
         } catch (IOException e) {
             throw new IllegalStateException("Unable to mark processed", e);
@@ -365,25 +521,195 @@ public class TinkoffReportRepositoryFiles implements AccountReportRepository<Tin
 
     @Override
     public AccountReportId save(String name, InputStream content) throws IOException {
-        Validate.notEmpty(name);
+        final File reportFile = newReportFile(name);
+        Validate.notNull(content);
+
+        final File uploadFile = File.createTempFile(UPLOAD_PREFIX, null, this.getBaseDirectory());
+        try {
+            final String hash = ContentHashIndex.copy(name, content, uploadFile);
+            commitUpload(uploadFile, hash, reportFile);
+        } finally {
+            Files.deleteIfExists(uploadFile.toPath());
+        }
+
+        return ID_OF.apply(reportFile);
+    }
+
+    @Override
+    public TinkoffReportUpload saveAndParse(String name, InputStream content) throws IOException {
+        final File reportFile = newReportFile(name);
         Validate.notNull(content);
-        Validate.isTrue(name.endsWith(CSV) || name.endsWith(OFX), "Invalid name of report: ", name);
-        Validate.isTrue(!(name.endsWith(CSV_PROCESSED) || name.endsWith(OFX_PROCESSED)),
+
+        final AccountReportId uploadId = new AccountReportId(name, Instant.now());
+        final File uploadFile = File.createTempFile(UPLOAD_PREFIX, null, this.getBaseDirectory());
+        try {
+            final MessageDigest digest = ContentHashIndex.digest();
+            final AccountReport<TinkoffOperation> parsed;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(uploadFile));
+                 InputStream tee = new TeeInputStream(content, out)) {
+                final ReportFiles.Content decoded = ReportFiles.open(name, CloseShieldInputStream.wrap(tee));
+                final InputStream stream = new DigestInputStream(decoded.stream(), digest);
+                final ReportParseEvent event = ReportParseEvent.begin(uploadId, decoded.format().name(), -1);
+                try {
+                    parsed = parse(uploadId, new ReportFiles.Content(decoded.format(), stream));
+                    // the parser may stop before the end of the report, e.g. after the root element of OFX
+                    stream.transferTo(OutputStream.nullOutputStream());
+                } catch (RuntimeException | ZipException e) {
+                    throw new IllegalArgumentException("Invalid report " + name + ": " + e.getMessage(), e);
+                }
+                // compressed content may be followed by data of the container, e.g. the zip central directory
+                tee.transferTo(OutputStream.nullOutputStream());
+                event.finish(parsed.operations().size(), uploadFile.length());
+            }
+
+            commitUpload(uploadFile, ContentHashIndex.hex(digest), reportFile);
+
+            final AccountReportId reportId = ID_OF.apply(reportFile);
+            return new TinkoffReportUpload(reportId, new AccountReport<>(reportId, parsed.operations()));
+        } finally {
+            Files.deleteIfExists(uploadFile.toPath());
+        }
+    }
+
+    /**
+     * Validates the name of a new report
+     *
+     * @param name name of the report
+     * @return file of the report in the base directory
+     */
+    private File newReportFile(String name) {
+        Validate.notEmpty(name);
+        Validate.isTrue(ReportFiles.isReport(name), "Invalid name of report: ", name);
+        Validate.isTrue(!ReportFiles.isProcessed(name),
                 "Saving already processed reports is not allowed:", name);
 
         final File reportFile = new File(this.getBaseDirectory(), name);
         Validate.isTrue(!reportFile.exists(), "Report file already exists:", name);
 
-        final String baseName = FilenameUtils.removeExtension(name);
-        final File processedCSVFile = new File(this.getBaseDirectory(), baseName + CSV_PROCESSED);
-        Validate.isTrue(!processedCSVFile.exists(), "Report file with this name is already processed earlier:", name);
+        final String baseName = ReportFiles.baseNameOf(name);
+        for (String extension : ReportFiles.extensions()) {
+            final String processedName = baseName + ReportFiles.PROCESSED + extension;
+            Validate.isTrue(!new File(this.getBaseDirectory(), processedName).exists(),
+                    "Report file with this name is already processed earlier:", name);
+            Validate.isTrue(archive == null || !archive.contains(processedName),
+                    "Report file with this name is already processed earlier:", name);
+        }
+        return reportFile;
+    }
 
-        final File processedOFXFile = new File(this.getBaseDirectory(), baseName + OFX_PROCESSED);
-        Validate.isTrue(!processedOFXFile.exists(), "Report file with this name is already processed earlier:", name);
+    /**
+     * @param name name of a saved report, or of a processed report
+     * @return true if the report is stored in the base directory or in the archive, processed or not
+     */
+    private boolean isStored(String name) {
+        if (new File(this.getBaseDirectory(), name).exists() || archive != null && archive.locate(name) != null) {
+            return true;
+        }
+        final String processedName = ReportFiles.processedName(name);
+        return new File(this.getBaseDirectory(), processedName).exists()
+                || archive != null && archive.contains(processedName);
+    }
 
-        FileUtils.copyInputStreamToFile(content, reportFile);
+    /**
+     * Moves uploaded content to the report file unless a report with the same content is already saved
+     */
+    private void commitUpload(File uploadFile, String hash, File reportFile) throws IOException {
+        synchronized (contentIndex) {
+            final String duplicate = contentIndex.find(hash);
+            Validate.isTrue(duplicate == null, "Report with the same content is already saved as %s", duplicate);
+            Files.move(uploadFile.toPath(), reportFile.toPath());
+            contentIndex.add(hash, reportFile.getName());
+        }
+    }
 
-        return ID_OF.apply(reportFile);
+    /**
+     * Reads transactions of an OFX document one by one, tracking the account of the enclosing statement
+     */
+    private static class OfxOperationIterator implements Iterator<TinkoffOperation> {
+
+        private final XMLStreamReader reader;
+
+        private final TinkoffRowFilter filter;
+
+        private AccountNumber currentAccount;
+
+        private TinkoffOperation next;
+
+        OfxOperationIterator(XMLStreamReader reader, TinkoffRowFilter filter) {
+            this.reader = reader;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public TinkoffOperation next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final TinkoffOperation result = next;
+            next = null;
+            return result;
+        }
+
+        private TinkoffOperation advance() {
+            try {
+                String tagName;
+                while (reader.hasNext()) {
+                    int eventType = reader.next();
+                    switch (eventType) {
+                        case START_ELEMENT -> {
+                            tagName = reader.getName().getLocalPart();
+                            if ("BANKACCTFROM".equalsIgnoreCase(tagName)) {
+                                final OfxBankAccount account = OFX_MAPPER.readValue(reader, OfxBankAccount.class);
+                                currentAccount = new AccountNumber(account.accountId);
+                            } else if ("STMTRS".equalsIgnoreCase(tagName)) {
+                                currentAccount = null;
+                            } else if ("STMTTRN".equalsIgnoreCase(tagName)) {
+                                final Statement stmt = OFX_MAPPER.readValue(reader, Statement.class);
+
+                                final LocalDateTime operationDateTime = stmt.dateTime.toInstant()
+                                        .atZone(TINKOFF_TZ).toLocalDateTime();
+                                if (filter.skip(null, currentAccount, mapCurrency(stmt.currency().code()),
+                                        operationDateTime)) {
+                                    continue;
+                                }
+                                return new TinkoffOperation(
+                                        currentAccount,
+                                        operationDateTime,
+                                        operationDateTime.toLocalDate(),
+                                        null,
+                                        stmt.amount().doubleValue(),
+                                        mapCurrency(stmt.currency().code()),
+                                        stmt.amount().doubleValue(),
+                                        mapCurrency(stmt.currency().code()),
+                                        null,
+                                        stmt.memo(),
+                                        null,
+                                        stmt.fitId() + " " + stmt.name(),
+                                        null
+                                );
+                            }
+                        }
+                        case END_ELEMENT -> {
+                            tagName = reader.getName().getLocalPart();
+                            if ("STMTRS".equalsIgnoreCase(tagName)) {
+                                currentAccount = null;
+                            }
+                        }
+                    }
+                }
+                return null;
+            } catch (XMLStreamException | IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
     }
 
     private record OfxBankAccount(@JsonProperty("BANKID") String bankId, @JsonProperty("ACCTID") String accountId,
@@ -0,0 +1,50 @@
+package ru.vzotov.tinkoff.infrastructure.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Periodic sample of an adaptive concurrency limit
+ */
+@Name("ru.vzotov.tinkoff.ConcurrencyLimit")
+@Label("Concurrency Limit")
+@Category({"Tinkoff", "Accounting"})
+@Description("Current limit of concurrent calls adjusted from observed latency and errors")
+@Period("1 s")
+@StackTrace(false)
+public class ConcurrencyLimitEvent extends Event {
+
+    @Label("Limiter")
+    String limiter;
+
+    @Label("Call Type")
+    String callType;
+
+    @Label("Limit")
+    int limit;
+
+    @Label("In Flight")
+    int inFlight;
+
+    @Label("Baseline Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long baselineLatency;
+
+    public static void emit(String limiter, String callType, int limit, int inFlight, long baselineLatency) {
+        final ConcurrencyLimitEvent event = new ConcurrencyLimitEvent();
+        if (event.shouldCommit()) {
+            event.limiter = limiter;
+            event.callType = callType;
+            event.limit = limit;
+            event.inFlight = inFlight;
+            event.baselineLatency = baselineLatency;
+            event.commit();
+        }
+    }
+}
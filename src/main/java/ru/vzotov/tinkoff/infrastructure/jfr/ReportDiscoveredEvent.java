@@ -0,0 +1,31 @@
+package ru.vzotov.tinkoff.infrastructure.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+
+/**
+ * Instant event emitted once for each unprocessed report, when it is first found in the inbox.
+ */
+@Name("ru.vzotov.tinkoff.ReportDiscovered")
+@Label("Report Discovered")
+@Category({"Tinkoff", "Reports"})
+@Description("Unprocessed report found in the report repository")
+@StackTrace(false)
+public class ReportDiscoveredEvent extends Event {
+
+    @Label("Report Id")
+    String reportId;
+
+    public static void emit(AccountReportId reportId) {
+        final ReportDiscoveredEvent event = new ReportDiscoveredEvent();
+        if (event.shouldCommit()) {
+            event.reportId = reportId.name();
+            event.commit();
+        }
+    }
+}
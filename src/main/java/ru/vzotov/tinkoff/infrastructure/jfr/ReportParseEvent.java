@@ -0,0 +1,57 @@
+package ru.vzotov.tinkoff.infrastructure.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+
+/**
+ * Duration event spanning the parsing of a single report file.
+ * The start of the event marks the start of parsing and the end of the event marks the end of it.
+ */
+@Name("ru.vzotov.tinkoff.ReportParse")
+@Label("Report Parse")
+@Category({"Tinkoff", "Reports"})
+@Description("Parsing of a report file into operations")
+@StackTrace(false)
+public class ReportParseEvent extends Event {
+
+    @Label("Report Id")
+    String reportId;
+
+    @Label("Format")
+    String format;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    public static ReportParseEvent begin(AccountReportId reportId, String format, long bytes) {
+        final ReportParseEvent event = new ReportParseEvent();
+        event.reportId = reportId.name();
+        event.format = format;
+        event.bytes = bytes;
+        event.begin();
+        return event;
+    }
+
+    public void finish(int rows) {
+        this.rows = rows;
+        commit();
+    }
+
+    /**
+     * Finishes the event for a report which size is known only after parsing, e.g. a report parsed while uploaded
+     */
+    public void finish(int rows, long bytes) {
+        this.bytes = bytes;
+        finish(rows);
+    }
+}
@@ -0,0 +1,14 @@
+package ru.vzotov.tinkoff.infrastructure.jfr;
+
+/**
+ * Stages of report processing reported by {@link ReportStageEvent}
+ */
+public enum ReportStage {
+    CARD_RESOLUTION,
+    ACCOUNT_RESOLUTION,
+    REGISTER_OPERATION,
+    REGISTER_CARD_OPERATION,
+    REGISTER_HOLD_OPERATION,
+    REMOVE_MATCHING_HOLD_OPERATIONS,
+    MARK_PROCESSED
+}
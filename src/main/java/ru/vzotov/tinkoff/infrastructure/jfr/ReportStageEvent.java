@@ -0,0 +1,47 @@
+package ru.vzotov.tinkoff.infrastructure.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+
+/**
+ * Duration event spanning a single stage of report processing, e.g. one call to the accounting service.
+ */
+@Name("ru.vzotov.tinkoff.ReportStage")
+@Label("Report Processing Stage")
+@Category({"Tinkoff", "Reports"})
+@Description("Single stage of report processing")
+@StackTrace(false)
+public class ReportStageEvent extends Event {
+
+    @Label("Report Id")
+    String reportId;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    public static ReportStageEvent begin(AccountReportId reportId, ReportStage stage) {
+        final ReportStageEvent event = new ReportStageEvent();
+        event.reportId = reportId.name();
+        event.stage = stage.name();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the stage and commits the event
+     *
+     * @param succeeded false if the stage failed or did not produce its result
+     */
+    public void finish(boolean succeeded) {
+        this.succeeded = succeeded;
+        commit();
+    }
+}
@@ -0,0 +1,26 @@
+package ru.vzotov.tinkoff;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.TypeReference;
+import org.springframework.aot.hint.predicate.RuntimeHintsPredicates;
+import ru.vzotov.tinkoff.infrastructure.fs.TinkoffReportRepositoryFiles;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TinkoffRuntimeHintsTest {
+
+    @Test
+    public void registerOfxBinding() throws ClassNotFoundException {
+        final RuntimeHints hints = new RuntimeHints();
+        new TinkoffRuntimeHints().registerHints(hints, getClass().getClassLoader());
+
+        for (String name : new String[]{"$OfxBankAccount", "$Statement", "$OfxCurrency", "$OfxDateSerializer"}) {
+            // the hints refer to the parser classes by name, so make sure the names are not stale
+            final Class<?> type = Class.forName(TinkoffReportRepositoryFiles.class.getName() + name);
+            assertThat(RuntimeHintsPredicates.reflection().onType(TypeReference.of(type))
+                    .withMemberCategory(MemberCategory.INVOKE_DECLARED_CONSTRUCTORS)).accepts(hints);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ru.vzotov.tinkoff.application;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import ru.vzotov.accounting.application.AccountReportService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(MockitoExtension.class)
+public class AccountReportTinkoffNotifierTest {
+
+    private static final long SECOND = 1000;
+
+    private static final long TICK = 5 * SECOND;
+
+    @Mock
+    private AccountReportService accountReportService;
+    @Mock
+    private TinkoffReportScheduler reportScheduler;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private final List<Long> scans = new ArrayList<>();
+
+    private AccountReportTinkoffNotifier notifier() {
+        final AccountReportTinkoffNotifier notifier = new AccountReportTinkoffNotifier(accountReportService, clock::get);
+        notifier.setReportScheduler(reportScheduler);
+        return notifier;
+    }
+
+    /**
+     * Runs the notifier every tick for the duration
+     */
+    private void run(AccountReportTinkoffNotifier notifier, long duration) {
+        for (final long end = clock.get() + duration; clock.get() < end; clock.addAndGet(TICK)) {
+            notifier.searchNewReports();
+        }
+    }
+
+    /**
+     * @return pauses between scans, in seconds
+     */
+    private List<Long> pauses() {
+        final List<Long> result = new ArrayList<>();
+        for (int i = 1; i < scans.size(); i++) {
+            result.add((scans.get(i) - scans.get(i - 1)) / SECOND);
+        }
+        return result;
+    }
+
+    @Test
+    public void backOffWhileInboxesAreIdle() {
+        Mockito.when(reportScheduler.schedulePendingReports()).thenAnswer(invocation -> {
+            scans.add(clock.get());
+            return 0;
+        });
+        final AccountReportTinkoffNotifier notifier = notifier();
+
+        run(notifier, 3600 * SECOND);
+
+        // the pause doubles up to 10 minutes
+        assertThat(pauses()).startsWith(60L, 120L, 240L, 480L, 600L, 600L);
+        assertThat(pauses()).allMatch(pause -> pause <= 600L);
+        Mockito.verifyNoInteractions(accountReportService);
+    }
+
+    @Test
+    public void scanEveryTickWhileReportsArePending() {
+        final AtomicLong pending = new AtomicLong(3);
+        final AtomicLong completed = new AtomicLong();
+        Mockito.when(reportScheduler.schedulePendingReports()).thenAnswer(invocation -> {
+            scans.add(clock.get());
+            if (pending.get() > 0) {
+                pending.decrementAndGet();
+                completed.incrementAndGet();
+            }
+            return (int) pending.get();
+        });
+        Mockito.when(reportScheduler.completed()).thenAnswer(invocation -> completed.get());
+        final AccountReportTinkoffNotifier notifier = notifier();
+
+        // idle for a while, so the pause grows
+        pending.set(0);
+        run(notifier, 1800 * SECOND);
+        assertThat(pauses()).contains(600L);
+
+        // new reports are found by the next scan and keep the scanner busy
+        pending.set(3);
+        scans.clear();
+        run(notifier, 700 * SECOND);
+        final List<Long> pauses = pauses();
+        assertThat(pauses).startsWith(5L, 5L);
+        // after the backlog the pause starts from 30 seconds again
+        assertThat(pauses.get(2)).isEqualTo(30L);
+    }
+
+    @Test
+    public void processReportsWithoutScheduler() {
+        final AccountReportTinkoffNotifier notifier = new AccountReportTinkoffNotifier(accountReportService, clock::get);
+
+        run(notifier, 1800 * SECOND);
+
+        Mockito.verify(accountReportService, Mockito.times(3)).processNewReports();
+    }
+}
@@ -0,0 +1,126 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Limiter with the defaults of the module
+     */
+    private AdaptiveConcurrencyLimiter limiter() {
+        return new AdaptiveConcurrencyLimiter("test", 4, 1, 64, 2.0, 0.9, clock::get);
+    }
+
+    /**
+     * Starts as many calls as the limit allows and completes them after the latency
+     */
+    private void round(AdaptiveConcurrencyLimiter limiter, String type, long latency) {
+        final long[] starts = IntStream.range(0, limiter.limit()).mapToLong(i -> limiter.acquire()).toArray();
+        clock.addAndGet(latency);
+        for (long start : starts) {
+            limiter.release(type, start, false);
+        }
+    }
+
+    @Test
+    public void growWhenSaturatedAndBackOffOnErrors() throws Exception {
+        try (AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 2, 1, 4, 20, 0.5, clock::get)) {
+            for (int i = 0; i < 10; i++) {
+                round(limiter, "call", MILLISECOND);
+            }
+            assertThat(limiter.limit()).isEqualTo(4);
+            assertThat(limiter.inFlight()).isZero();
+
+            // every failed call started after the previous decrease
+            for (int i = 0; i < 4; i++) {
+                assertThatThrownBy(() -> limiter.call(() -> {
+                    throw new IllegalStateException("overload");
+                })).isInstanceOf(IllegalStateException.class);
+            }
+            assertThat(limiter.limit()).isEqualTo(1);
+
+            assertThatThrownBy(() -> limiter.call(() -> {
+                throw new Exception("not found");
+            })).hasMessage("not found");
+            // checked exceptions complete the call normally
+            assertThat(limiter.limit()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void decreaseOncePerCongestionEpisode() {
+        try (AdaptiveConcurrencyLimiter limiter = limiter()) {
+            for (int i = 0; i < 1000 && limiter.limit() < 64; i++) {
+                round(limiter, "register", MILLISECOND);
+            }
+            assertThat(limiter.limit()).isEqualTo(64);
+
+            // all 64 calls in flight see the spike, the limit is decreased once
+            round(limiter, "register", 10 * MILLISECOND);
+            assertThat(limiter.limit()).isEqualTo(57);
+
+            // calls started after the decrease belong to the next episode
+            round(limiter, "register", 10 * MILLISECOND);
+            assertThat(limiter.limit()).isEqualTo(51);
+            assertThat(limiter.inFlight()).isZero();
+        }
+    }
+
+    @Test
+    public void compareLatencyWithBaselineOfCallType() {
+        try (AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 4, 1, 64, 2.0, 0.5, clock::get)) {
+            round(limiter, "hold", MILLISECOND);
+            round(limiter, "register", 10 * MILLISECOND);
+            final int limit = limiter.limit();
+
+            // slow calls of a slow type are not an overload
+            round(limiter, "register", 10 * MILLISECOND);
+            assertThat(limiter.limit()).isGreaterThanOrEqualTo(limit);
+
+            round(limiter, "hold", 10 * MILLISECOND);
+            assertThat(limiter.limit()).isLessThan(limit);
+        }
+    }
+
+    @Test
+    public void keepCallsInFlightUnderLimit() throws Exception {
+        try (AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 2, 1, 4, 20, 0.5)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                final CountDownLatch done = new CountDownLatch(200);
+                for (int i = 0; i < 200; i++) {
+                    executor.execute(() -> {
+                        try {
+                            limiter.call(() -> {
+                                assertThat(limiter.inFlight()).isLessThanOrEqualTo(4);
+                                Thread.sleep(1);
+                                return null;
+                            });
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        done.countDown();
+                    });
+                }
+                assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+            } finally {
+                executor.shutdown();
+            }
+            assertThat(limiter.inFlight()).isZero();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import ru.vzotov.accounting.application.AccountingService;
+import ru.vzotov.accounting.domain.model.AccountReport;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.accounting.domain.model.AccountReportRepository;
+import ru.vzotov.accounting.domain.model.AccountRepository;
+import ru.vzotov.accounting.domain.model.CardRepository;
+import ru.vzotov.banking.domain.model.Account;
+import ru.vzotov.banking.domain.model.AccountNumber;
+import ru.vzotov.banking.domain.model.OperationId;
+import ru.vzotov.banking.domain.model.OperationType;
+import ru.vzotov.banking.domain.model.TransactionReference;
+import ru.vzotov.domain.model.Money;
+import ru.vzotov.person.domain.model.PersonId;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(MockitoExtension.class)
+public class OfxMultiAccountReportTest {
+
+    private static final AccountNumber CURRENT = new AccountNumber("40817810000016123456");
+    private static final AccountNumber SAVINGS = new AccountNumber("40817810000016654321");
+
+    @Mock
+    private AccountReportRepository<TinkoffOperation> reportRepository;
+    @Mock
+    private AccountingService accountingService;
+    @Mock
+    private AccountRepository accountRepository;
+    @Mock
+    private CardRepository cardRepository;
+
+    private static TinkoffOperation operation(AccountNumber account, int day, LocalDate paymentDate, String description) {
+        return new TinkoffOperation(account, LocalDateTime.of(2023, Month.MARCH, day, 12, 0), paymentDate, null,
+                -100d, "RUB", -100d, "RUB", null, null, null, description, null);
+    }
+
+    @Test
+    public void registerStatementsInParallel() throws Exception {
+        final TinkoffOperation hold = operation(CURRENT, 1, null, "current");
+        final TinkoffOperation settled = operation(CURRENT, 1, LocalDate.of(2023, Month.MARCH, 2), "current");
+        final TinkoffOperation saving = operation(SAVINGS, 1, LocalDate.of(2023, Month.MARCH, 1), "savings");
+        final AccountReportId reportId = new AccountReportId("report.ofx", Instant.now());
+        Mockito.when(reportRepository.find(reportId)).thenReturn(new AccountReport<>(reportId, List.of(hold, settled, saving)));
+        Mockito.when(accountRepository.find(CURRENT)).thenReturn(new Account(CURRENT, new PersonId("vzotov")));
+        Mockito.when(accountRepository.find(SAVINGS)).thenReturn(new Account(SAVINGS, new PersonId("vzotov")));
+
+        // the operation of the current account waits for the operation of the savings account
+        final CountDownLatch savingsRegistered = new CountDownLatch(1);
+        Mockito.when(accountingService.registerOperation(
+                Mockito.any(AccountNumber.class),
+                Mockito.any(LocalDate.class),
+                Mockito.any(TransactionReference.class),
+                Mockito.any(OperationType.class),
+                Mockito.any(Money.class),
+                Mockito.anyString()
+        )).thenAnswer(invocation -> {
+            if (SAVINGS.equals(invocation.getArgument(0))) {
+                savingsRegistered.countDown();
+                return new OperationId("savings");
+            }
+            assertThat(savingsRegistered.await(5, TimeUnit.SECONDS)).isTrue();
+            return new OperationId("current");
+        });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final AccountReportServiceTinkoff service =
+                    new AccountReportServiceTinkoff(reportRepository, accountingService, accountRepository, cardRepository);
+            service.setStatementExecutor(executor);
+            service.processAccountReport(reportId);
+        } finally {
+            executor.shutdown();
+        }
+
+        final InOrder inOrder = Mockito.inOrder(accountingService, reportRepository);
+        inOrder.verify(accountingService).registerHoldOperation(Mockito.eq(CURRENT), Mockito.eq(hold.operationDate().toLocalDate()),
+                Mockito.eq(OperationType.WITHDRAW), Mockito.any(Money.class), Mockito.eq("current"));
+        inOrder.verify(accountingService).registerOperation(Mockito.eq(CURRENT), Mockito.eq(settled.paymentDate()),
+                Mockito.any(TransactionReference.class), Mockito.eq(OperationType.WITHDRAW), Mockito.any(Money.class),
+                Mockito.eq("current"));
+        inOrder.verify(accountingService).removeMatchingHoldOperations(new OperationId("current"));
+        inOrder.verify(reportRepository).markProcessed(reportId);
+        Mockito.verify(accountingService).removeMatchingHoldOperations(new OperationId("savings"));
+    }
+
+    @Test
+    public void registerNoStatementsWhenAccountIsMissing() throws Exception {
+        final TinkoffOperation current = operation(CURRENT, 1, LocalDate.of(2023, Month.MARCH, 1), "current");
+        final TinkoffOperation saving = operation(SAVINGS, 1, LocalDate.of(2023, Month.MARCH, 1), "savings");
+        final AccountReportId reportId = new AccountReportId("report.ofx", Instant.now());
+        Mockito.when(reportRepository.find(reportId)).thenReturn(new AccountReport<>(reportId, List.of(current, saving)));
+        Mockito.when(accountRepository.find(CURRENT)).thenReturn(new Account(CURRENT, new PersonId("vzotov")));
+        Mockito.when(accountRepository.find(SAVINGS)).thenReturn(null);
+
+        new AccountReportServiceTinkoff(reportRepository, accountingService, accountRepository, cardRepository)
+                .processAccountReport(reportId);
+
+        Mockito.verifyNoInteractions(accountingService);
+        Mockito.verify(reportRepository, Mockito.never()).markProcessed(reportId);
+    }
+}
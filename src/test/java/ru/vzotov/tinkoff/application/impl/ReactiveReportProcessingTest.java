@@ -0,0 +1,111 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Flux;
+import ru.vzotov.accounting.application.AccountingService;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.accounting.domain.model.AccountReportRepository;
+import ru.vzotov.accounting.domain.model.AccountRepository;
+import ru.vzotov.accounting.domain.model.CardRepository;
+import ru.vzotov.banking.domain.model.Account;
+import ru.vzotov.banking.domain.model.AccountNumber;
+import ru.vzotov.banking.domain.model.OperationId;
+import ru.vzotov.banking.domain.model.OperationType;
+import ru.vzotov.banking.domain.model.TransactionReference;
+import ru.vzotov.domain.model.Money;
+import ru.vzotov.person.domain.model.PersonId;
+import ru.vzotov.tinkoff.application.TinkoffReportListener;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(MockitoExtension.class)
+public class ReactiveReportProcessingTest {
+
+    private static final AccountNumber ACCOUNT_NUMBER = new AccountNumber("40817810000016123456");
+    private static final int ROWS = 1000;
+    /**
+     * Rows read ahead of registration: the batch being registered, the next one and the one being buffered
+     */
+    private static final int READ_AHEAD = 3 * 64;
+
+    @Mock
+    private AccountReportRepository<TinkoffOperation> reportRepository;
+    @Mock
+    private AccountingService accountingService;
+    @Mock
+    private AccountRepository accountRepository;
+    @Mock
+    private CardRepository cardRepository;
+    @Mock
+    private TinkoffReportListener listener;
+
+    private final AtomicInteger read = new AtomicInteger();
+
+    private final AtomicInteger registered = new AtomicInteger();
+
+    private Flux<TinkoffOperation> report() {
+        return Flux.defer(() -> Flux.fromStream(IntStream.range(0, ROWS).mapToObj(i -> new TinkoffOperation(ACCOUNT_NUMBER,
+                        LocalDateTime.of(2023, Month.MARCH, 1, 12, 0).plusMinutes(i), LocalDate.of(2023, Month.MARCH, 1),
+                        null, -1d - i, "RUR", -1d - i, "RUR", null, null, null, "row " + i, null))))
+                .doOnNext(operation -> read.incrementAndGet());
+    }
+
+    private AccountReportServiceTinkoff service() {
+        final AccountReportServiceTinkoff service =
+                new AccountReportServiceTinkoff(reportRepository, accountingService, accountRepository, cardRepository);
+        service.setListeners(List.of(listener));
+        return service;
+    }
+
+    @Test
+    public void registerRowsAsTheyAreRead() throws Exception {
+        final AccountReportId reportId = new AccountReportId("report.ofx", Instant.now());
+        Mockito.when(accountRepository.find(ACCOUNT_NUMBER)).thenReturn(new Account(ACCOUNT_NUMBER, new PersonId("vzotov")));
+        Mockito.when(accountingService.registerOperation(
+                Mockito.any(AccountNumber.class),
+                Mockito.any(LocalDate.class),
+                Mockito.any(TransactionReference.class),
+                Mockito.any(OperationType.class),
+                Mockito.any(Money.class),
+                Mockito.anyString()
+        )).thenAnswer(invocation -> {
+            // reading waits for registration instead of running ahead
+            assertThat(read.get() - registered.incrementAndGet()).isLessThanOrEqualTo(READ_AHEAD);
+            return new OperationId("op-" + registered.get());
+        });
+
+        assertThat(service().processAccountReport(reportId, report()).block()).isTrue();
+
+        assertThat(registered.get()).isEqualTo(ROWS);
+        // the report is read again to notify listeners
+        assertThat(read.get()).isEqualTo(2 * ROWS);
+        Mockito.verify(reportRepository).markProcessed(reportId);
+        Mockito.verify(listener, Mockito.times((ROWS + 63) / 64))
+                .reportProcessed(Mockito.eq(reportId), Mockito.anyList());
+    }
+
+    @Test
+    public void stopReadingWhenRegistrationStops() {
+        final AccountReportId reportId = new AccountReportId("report.ofx", Instant.now());
+        Mockito.when(accountRepository.find(ACCOUNT_NUMBER)).thenReturn(null);
+
+        assertThat(service().processAccountReport(reportId, report()).block()).isFalse();
+
+        assertThat(read.get()).isLessThanOrEqualTo(READ_AHEAD);
+        Mockito.verifyNoInteractions(accountingService, listener);
+        Mockito.verify(reportRepository, Mockito.never()).markProcessed(reportId);
+    }
+}
@@ -0,0 +1,53 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.junit.jupiter.api.Test;
+import ru.vzotov.banking.domain.model.AccountNumber;
+import ru.vzotov.tinkoff.application.TinkoffReconciliation;
+import ru.vzotov.tinkoff.application.TinkoffRegisteredOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReportReconcilerTest {
+
+    private static final AccountNumber ACCOUNT = new AccountNumber("40817810000000000001");
+
+    private static TinkoffOperation operation(int day, double amount) {
+        return new TinkoffOperation(null,
+                LocalDateTime.of(2020, Month.MARCH, day, 12, 0), LocalDate.of(2020, Month.MARCH, day), "*1234",
+                amount, "RUB", amount, "RUB", null, "Супермаркеты", "5411", "Магнит", null);
+    }
+
+    private static TinkoffRegisteredOperation registered(TinkoffOperation row, long amount) {
+        return new TinkoffRegisteredOperation(AccountReportServiceTinkoff.transactionReferenceOf(row),
+                row.paymentDate(), amount, row.operationCurrency(), row.description());
+    }
+
+    @Test
+    public void reconcile() {
+        final TinkoffOperation matched = operation(1, -100d);
+        final TinkoffOperation duplicate = operation(1, -100d);
+        final TinkoffOperation missing = operation(2, -50.5d);
+        final TinkoffOperation mismatched = operation(3, -10d);
+        final TinkoffRegisteredOperation extra = new TinkoffRegisteredOperation("other",
+                LocalDate.of(2020, Month.MARCH, 2), 1000, "RUB", "Пополнение");
+
+        final TinkoffReconciliation result = ReportReconciler.reconcile(ACCOUNT,
+                LocalDate.of(2020, Month.MARCH, 1), LocalDate.of(2020, Month.MARCH, 3),
+                List.of(mismatched, matched, missing, duplicate),
+                List.of(registered(mismatched, -999), extra, registered(matched, -10000)));
+
+        assertThat(result.matched()).isEqualTo(1);
+        // the duplicate shares the reference of the matched row and is not missing
+        assertThat(result.missing()).containsExactly(missing);
+        assertThat(result.extra()).containsExactly(extra);
+        assertThat(result.mismatched()).containsExactly(
+                new TinkoffReconciliation.Mismatch(mismatched, registered(mismatched, -999)));
+        assertThat(result.isReconciled()).isFalse();
+    }
+}
@@ -0,0 +1,203 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import ru.vzotov.accounting.application.AccountingService;
+import ru.vzotov.accounting.domain.model.AccountReport;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.accounting.domain.model.AccountRepository;
+import ru.vzotov.accounting.domain.model.CardRepository;
+import ru.vzotov.banking.domain.model.Account;
+import ru.vzotov.banking.domain.model.AccountNumber;
+import ru.vzotov.banking.domain.model.OperationId;
+import ru.vzotov.banking.domain.model.OperationType;
+import ru.vzotov.banking.domain.model.TransactionReference;
+import ru.vzotov.domain.model.Money;
+import ru.vzotov.person.domain.model.PersonId;
+import ru.vzotov.tinkoff.application.TinkoffReportListener;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportRepository;
+import ru.vzotov.tinkoff.domain.model.TinkoffRowFilter;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(MockitoExtension.class)
+public class TinkoffInboxSchedulerTest {
+
+    @Mock
+    private TinkoffReportRepository backlog;
+    @Mock
+    private TinkoffReportRepository daily;
+    @Mock
+    private AccountingService accountingService;
+    @Mock
+    private AccountRepository accountRepository;
+    @Mock
+    private CardRepository cardRepository;
+    @Mock
+    private TinkoffReportListener dailyListener;
+
+    private static void stubInbox(TinkoffReportRepository repository, long size, AccountReportId... reports) {
+        Mockito.when(repository.findUnprocessed()).thenReturn(List.of(reports)).thenReturn(List.of());
+        Mockito.when(repository.sizeOf(Mockito.any(AccountReportId.class))).thenReturn(size);
+        Mockito.when(repository.isUnprocessed(Mockito.any(AccountReportId.class))).thenReturn(true);
+        Mockito.when(repository.find(Mockito.any(AccountReportId.class), Mockito.eq(TinkoffRowFilter.NONE)))
+                .thenAnswer(invocation -> new AccountReport<>(invocation.getArgument(0), List.of()));
+    }
+
+    @Test
+    public void shareWorkersBetweenInboxes() throws InterruptedException {
+        final AccountReportId backlog1 = new AccountReportId("backlog-1", Instant.now());
+        final AccountReportId backlog2 = new AccountReportId("backlog-2", Instant.now());
+        final AccountReportId backlog3 = new AccountReportId("backlog-3", Instant.now());
+        final AccountReportId statement = new AccountReportId("statement", Instant.now());
+        stubInbox(backlog, 100_000, backlog1, backlog2, backlog3);
+        stubInbox(daily, 1_000, statement);
+
+        final AccountReportServiceTinkoff service =
+                new AccountReportServiceTinkoff(backlog, accountingService, accountRepository, cardRepository);
+        try (TinkoffInboxScheduler scheduler = new TinkoffInboxScheduler(service, List.of(
+                new TinkoffInboxScheduler.Inbox("backlog", backlog, 1),
+                new TinkoffInboxScheduler.Inbox("daily", daily, 1, List.of(dailyListener), TinkoffRowFilter.NONE)),
+                1, Duration.ofMinutes(1))) {
+            while (scheduler.schedulePendingReports() > 0) {
+                Thread.sleep(10);
+            }
+            assertThat(scheduler.completed()).isEqualTo(4);
+        }
+
+        // the statement of the daily inbox does not wait for the backlog
+        final InOrder inOrder = Mockito.inOrder(backlog, daily);
+        inOrder.verify(backlog).markProcessed(backlog1);
+        inOrder.verify(daily).markProcessed(statement);
+        inOrder.verify(backlog).markProcessed(backlog2);
+        inOrder.verify(backlog).markProcessed(backlog3);
+        // listeners of the daily inbox are notified of its reports only
+        Mockito.verify(dailyListener).reportProcessed(statement, List.of());
+        Mockito.verifyNoMoreInteractions(dailyListener);
+    }
+
+    @Test
+    public void retryFailedReportsAfterDelay() throws Exception {
+        final AccountNumber accountNumber = new AccountNumber("40817810000016123456");
+        final TinkoffOperation operation = new TinkoffOperation(accountNumber,
+                LocalDateTime.of(2023, Month.MARCH, 1, 12, 0), LocalDate.of(2023, Month.MARCH, 1), null,
+                -100d, "RUR", -100d, "RUR", null, null, null, "operation", null);
+        final AccountReportId report = new AccountReportId("report", Instant.now());
+        final AtomicBoolean processed = new AtomicBoolean();
+        Mockito.when(daily.findUnprocessed()).thenAnswer(invocation -> processed.get() ? List.of() : List.of(report));
+        Mockito.doAnswer(invocation -> {
+            processed.set(true);
+            return null;
+        }).when(daily).markProcessed(report);
+        Mockito.when(daily.sizeOf(report)).thenReturn(1_000L);
+        Mockito.when(daily.isUnprocessed(report)).thenReturn(true);
+        Mockito.when(daily.find(report, TinkoffRowFilter.NONE)).thenReturn(new AccountReport<>(report, List.of(operation)));
+        // the account is not registered yet when the report is processed for the first time
+        Mockito.when(accountRepository.find(accountNumber))
+                .thenReturn(null)
+                .thenReturn(new Account(accountNumber, new PersonId("vzotov")));
+        Mockito.when(accountingService.registerOperation(
+                Mockito.any(AccountNumber.class),
+                Mockito.any(LocalDate.class),
+                Mockito.any(TransactionReference.class),
+                Mockito.any(OperationType.class),
+                Mockito.any(Money.class),
+                Mockito.anyString()
+        )).thenReturn(new OperationId("operation"));
+
+        final AccountReportServiceTinkoff service =
+                new AccountReportServiceTinkoff(backlog, accountingService, accountRepository, cardRepository);
+        try (TinkoffInboxScheduler scheduler = new TinkoffInboxScheduler(service, List.of(
+                new TinkoffInboxScheduler.Inbox("daily", daily, 1)), 1, Duration.ofMillis(200))) {
+            while (scheduler.schedulePendingReports() > 0) {
+                Thread.sleep(10);
+            }
+            // the failed report is not pending until the retry delay passes
+            assertThat(scheduler.schedulePendingReports()).isZero();
+            assertThat(scheduler.completed()).isZero();
+            Mockito.verify(daily, Mockito.never()).markProcessed(report);
+
+            Thread.sleep(250);
+            while (scheduler.schedulePendingReports() > 0) {
+                Thread.sleep(10);
+            }
+            assertThat(scheduler.completed()).isEqualTo(1);
+        }
+        Mockito.verify(daily).markProcessed(report);
+        Mockito.verify(daily, Mockito.times(2)).find(report, TinkoffRowFilter.NONE);
+    }
+
+    @Test
+    public void deferReportsMetByScanWithoutPenalty() throws Exception {
+        final AccountReportId report = new AccountReportId("report", Instant.now());
+        stubInbox(backlog, 1_000, report);
+
+        final AccountReportServiceTinkoff service =
+                new AccountReportServiceTinkoff(backlog, accountingService, accountRepository, cardRepository);
+        final CountDownLatch scanning = new CountDownLatch(1);
+        final CountDownLatch scanned = new CountDownLatch(1);
+        final Thread scan = new Thread(() -> service.withScanLock(() -> {
+            scanning.countDown();
+            try {
+                scanned.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }));
+        scan.start();
+        scanning.await();
+        try (TinkoffInboxScheduler scheduler = new TinkoffInboxScheduler(service, List.of(
+                new TinkoffInboxScheduler.Inbox("backlog", backlog, 1)), 1, Duration.ofHours(1))) {
+            assertThat(scheduler.schedulePendingReports()).isEqualTo(1);
+            Thread.sleep(100);
+            // the report is still pending while the scan is in flight
+            assertThat(scheduler.schedulePendingReports()).isEqualTo(1);
+            assertThat(scheduler.completed()).isZero();
+
+            scanned.countDown();
+            scan.join();
+            // and it does not wait for the retry delay
+            while (scheduler.schedulePendingReports() > 0) {
+                Thread.sleep(10);
+            }
+            assertThat(scheduler.completed()).isEqualTo(1);
+        }
+        Mockito.verify(backlog).markProcessed(report);
+    }
+
+    @Test
+    public void failReportsOnUnexpectedErrors() throws Exception {
+        final AccountReportId report = new AccountReportId("report", Instant.now());
+        Mockito.when(daily.findUnprocessed()).thenReturn(List.of(report));
+        Mockito.when(daily.sizeOf(report)).thenReturn(1_000L);
+        Mockito.when(daily.isUnprocessed(report)).thenThrow(new IllegalStateException("broken"));
+
+        final AccountReportServiceTinkoff service =
+                new AccountReportServiceTinkoff(backlog, accountingService, accountRepository, cardRepository);
+        try (TinkoffInboxScheduler scheduler = new TinkoffInboxScheduler(service, List.of(
+                new TinkoffInboxScheduler.Inbox("daily", daily, 1)), 1, Duration.ofHours(1))) {
+            while (scheduler.schedulePendingReports() > 0) {
+                Thread.sleep(10);
+            }
+            // the worker is free and the report waits for its retry
+            assertThat(scheduler.schedulePendingReports()).isZero();
+            assertThat(scheduler.completed()).isZero();
+        }
+        Mockito.verify(daily, Mockito.never()).markProcessed(report);
+    }
+}
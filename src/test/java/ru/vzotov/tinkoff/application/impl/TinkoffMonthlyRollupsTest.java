@@ -0,0 +1,78 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.tinkoff.application.TinkoffOperationSummary;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TinkoffMonthlyRollupsTest {
+
+    private static final YearMonth MARCH = YearMonth.of(2020, Month.MARCH);
+
+    private static TinkoffOperation operation(int day, double amount, Double cashBack) {
+        return new TinkoffOperation(null,
+                LocalDateTime.of(2020, Month.MARCH, day, 12, 0), LocalDate.of(2020, Month.MARCH, day + 1), "*1234",
+                amount, "RUR", amount, "RUR", cashBack, "Супермаркеты", "5411", "Магнит", cashBack);
+    }
+
+    @Test
+    public void overlappingReports(@TempDir File dir) {
+        final File file = new File(dir, "rollups.bin");
+        final TinkoffMonthlyRollups rollups = new TinkoffMonthlyRollups(file);
+
+        rollups.reportProcessed(new AccountReportId("march-1", Instant.now()),
+                List.of(operation(1, -100d, null), operation(2, -50.5d, 1d)));
+        // the second report repeats the tail of the first one, where cashback is assigned later
+        rollups.reportProcessed(new AccountReportId("march-2", Instant.now()),
+                List.of(operation(1, -100d, 2d), operation(2, -50.5d, 1d), operation(3, 1000d, null)));
+
+        final TinkoffOperationSummary expected = new TinkoffOperationSummary(3, 84950, 300, 300);
+        assertThat(rollups.total("*1234", MARCH, "RUR")).isEqualTo(expected);
+        assertThat(rollups.rollups(MARCH)).hasSize(1);
+
+        assertThat(new TinkoffMonthlyRollups(file).total("*1234", MARCH, "RUR")).isEqualTo(expected);
+    }
+
+    @Test
+    public void appendChangedContributions(@TempDir File dir) throws IOException {
+        final File file = new File(dir, "rollups.bin");
+        final TinkoffMonthlyRollups rollups = new TinkoffMonthlyRollups(file);
+        final List<TinkoffOperation> march = IntStream.rangeClosed(1, 28)
+                .mapToObj(day -> operation(day, -100d, null))
+                .toList();
+        rollups.reportProcessed(new AccountReportId("march", Instant.now()), march);
+        final long size = file.length();
+
+        // one corrected operation appends one record, not the whole month
+        rollups.reportProcessed(new AccountReportId("march-cashback", Instant.now()), List.of(operation(28, -100d, 1d)));
+        assertThat(file.length() - size).isLessThan(size / 10);
+        final TinkoffOperationSummary expected = new TinkoffOperationSummary(28, -280000, 100, 100);
+        assertThat(rollups.total("*1234", MARCH, "RUR")).isEqualTo(expected);
+        assertThat(new TinkoffMonthlyRollups(file).total("*1234", MARCH, "RUR")).isEqualTo(expected);
+
+        // an append interrupted by a crash loses the incomplete record only
+        rollups.reportProcessed(new AccountReportId("march-bonus", Instant.now()), List.of(operation(27, -100d, 2d)));
+        final byte[] content = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(content, content.length - 3));
+        final TinkoffMonthlyRollups recovered = new TinkoffMonthlyRollups(file);
+        assertThat(recovered.total("*1234", MARCH, "RUR")).isEqualTo(expected);
+        recovered.reportProcessed(new AccountReportId("march-bonus", Instant.now()), List.of(operation(27, -100d, 2d)));
+        assertThat(new TinkoffMonthlyRollups(file).total("*1234", MARCH, "RUR"))
+                .isEqualTo(new TinkoffOperationSummary(28, -280000, 300, 300));
+    }
+}
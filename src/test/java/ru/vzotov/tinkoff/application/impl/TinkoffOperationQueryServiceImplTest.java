@@ -0,0 +1,138 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.tinkoff.application.TinkoffOperationGrouping;
+import ru.vzotov.tinkoff.application.TinkoffOperationQuery;
+import ru.vzotov.tinkoff.application.TinkoffOperationSummary;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.infrastructure.fs.TinkoffReportRepositoryFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TinkoffOperationQueryServiceImplTest {
+
+    private static final File BASEDIR = new File("src/test/resources/account-reports");
+
+    /**
+     * Report left unprocessed
+     */
+    private static final String UNPROCESSED = "report_1.ofx";
+
+    @TempDir
+    private File dir;
+
+    private TinkoffReportRepositoryFiles repository;
+
+    private TinkoffOperationQueryServiceImpl service;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        for (File file : requireNonNull(BASEDIR.listFiles())) {
+            final String name = file.getName();
+            FileUtils.copyFile(file, new File(dir, name.equals(UNPROCESSED) ? name :
+                    name.replaceFirst("\\.", "_processed.")));
+        }
+        repository = new TinkoffReportRepositoryFiles(dir.getAbsolutePath(), true);
+        service = new TinkoffOperationQueryServiceImpl(repository);
+    }
+
+    @Test
+    public void findMatchesScanOfProcessedReports() {
+        // the last version of each operation
+        final Map<Long, TinkoffOperation> operations = new LinkedHashMap<>();
+        for (AccountReportId reportId : repository.findAll()) {
+            if (!reportId.name().equals(UNPROCESSED)) {
+                repository.find(reportId).operations()
+                        .forEach(op -> operations.put(TinkoffMonthlyRollups.fingerprintOf(op), op));
+            }
+        }
+        final List<TinkoffOperation> all = new ArrayList<>(operations.values());
+        final Set<TinkoffOperation> unprocessed = new HashSet<>(
+                repository.find(new AccountReportId(UNPROCESSED, Instant.now())).operations());
+        unprocessed.removeAll(all);
+        assertThat(unprocessed).isNotEmpty();
+
+        final TinkoffOperationQuery query = TinkoffOperationQuery
+                .between(LocalDate.of(2020, Month.FEBRUARY, 14), LocalDate.of(2020, Month.MARCH, 11))
+                .withCard("*1234")
+                .withMcc("5411");
+
+        final List<TinkoffOperation> found = service.find(query);
+        assertThat(found)
+                .isNotEmpty()
+                .containsExactlyInAnyOrderElementsOf(all.stream().filter(query::matches).toList())
+                .isSortedAccordingTo((a, b) -> a.operationDate().compareTo(b.operationDate()));
+        assertThat(service.find(TinkoffOperationQuery.all()))
+                .hasSize(all.size())
+                .doesNotContainAnyElementsOf(unprocessed);
+    }
+
+    @Test
+    public void summarize() {
+        final TinkoffOperationQuery query = TinkoffOperationQuery
+                .between(LocalDate.of(2020, Month.FEBRUARY, 16), LocalDate.of(2020, Month.FEBRUARY, 16));
+        assertThat(service.summarize(query)).isEqualTo(new TinkoffOperationSummary(1, -29000, 200, 200));
+
+        final Map<String, TinkoffOperationSummary> byMcc = service.summarize(
+                TinkoffOperationQuery.between(LocalDate.of(2020, Month.FEBRUARY, 1), LocalDate.of(2020, Month.FEBRUARY, 29)),
+                TinkoffOperationGrouping.MCC);
+        assertThat(byMcc).containsKeys("5411", "6012");
+    }
+
+    @Test
+    public void reportProcessed() {
+        final TinkoffOperationQuery query = TinkoffOperationQuery
+                .between(LocalDate.of(2030, Month.JANUARY, 1), LocalDate.of(2030, Month.DECEMBER, 31));
+        assertThat(service.find(query)).isEmpty();
+
+        final TinkoffOperation operation = new TinkoffOperation(null,
+                LocalDateTime.of(2030, Month.MAY, 1, 12, 0), LocalDate.of(2030, Month.MAY, 2), "*1234",
+                -100d, "RUR", -100d, "RUR", 1d, "Супермаркеты", "5411", "Магнит", 1d);
+        service.reportProcessed(new AccountReportId("test", Instant.now()), List.of(operation, operation));
+
+        assertThat(service.find(query)).containsExactly(operation);
+    }
+
+    @Test
+    public void replaceRedeliveredOperations() {
+        final TinkoffOperationQuery query = TinkoffOperationQuery
+                .between(LocalDate.of(2030, Month.MAY, 1), LocalDate.of(2030, Month.MAY, 31))
+                .withCategory("Супермаркеты");
+        final TinkoffOperation operation = new TinkoffOperation(null,
+                LocalDateTime.of(2030, Month.MAY, 1, 12, 0), LocalDate.of(2030, Month.MAY, 2), "*1234",
+                -100d, "RUR", -100d, "RUR", 1d, "Супермаркеты", "5411", "Магнит", 1d);
+        service.reportProcessed(new AccountReportId("first", Instant.now()), List.of(operation));
+        final TinkoffOperationSummary before = service.summarize(query);
+
+        // the cashback is assigned later
+        final TinkoffOperation redelivered = new TinkoffOperation(null,
+                LocalDateTime.of(2030, Month.MAY, 1, 12, 0), LocalDate.of(2030, Month.MAY, 2), "*1234",
+                -100d, "RUR", -100d, "RUR", 5d, "Супермаркеты", "5411", "Магнит", 5d);
+        service.reportProcessed(new AccountReportId("second", Instant.now()), List.of(redelivered));
+
+        assertThat(service.find(query)).containsExactly(redelivered);
+        assertThat(service.find(TinkoffOperationQuery.all().withCard("*1234"))).doesNotContain(operation);
+        final TinkoffOperationSummary after = service.summarize(query);
+        assertThat(after.count()).isEqualTo(1);
+        assertThat(after.amount()).isEqualTo(before.amount());
+        assertThat(after.cashBack()).isGreaterThan(before.cashBack());
+    }
+}
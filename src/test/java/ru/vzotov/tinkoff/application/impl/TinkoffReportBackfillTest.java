@@ -0,0 +1,137 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import ru.vzotov.accounting.application.AccountingService;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.accounting.domain.model.AccountRepository;
+import ru.vzotov.accounting.domain.model.CardRepository;
+import ru.vzotov.banking.domain.model.Account;
+import ru.vzotov.banking.domain.model.AccountNumber;
+import ru.vzotov.banking.domain.model.OperationId;
+import ru.vzotov.banking.domain.model.OperationType;
+import ru.vzotov.banking.domain.model.TransactionReference;
+import ru.vzotov.domain.model.Money;
+import ru.vzotov.person.domain.model.PersonId;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportRepository;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(MockitoExtension.class)
+public class TinkoffReportBackfillTest {
+
+    private static final AccountNumber ACCOUNT_NUMBER = new AccountNumber("40817810000016123456");
+    private static final Account ACCOUNT = new Account(ACCOUNT_NUMBER, new PersonId("vzotov"));
+
+    @Mock
+    private TinkoffReportRepository reportRepository;
+    @Mock
+    private AccountingService accountingService;
+    @Mock
+    private AccountRepository accountRepository;
+    @Mock
+    private CardRepository cardRepository;
+
+    private static TinkoffOperation operation(int day, LocalDate paymentDate, double amount, String description) {
+        return new TinkoffOperation(ACCOUNT_NUMBER, LocalDateTime.of(2020, Month.MARCH, day, 12, 0), paymentDate, null,
+                amount, "RUR", amount, "RUR", null, null, null, description, null);
+    }
+
+    @Test
+    public void backfillInChronologicalOrder(@TempDir File dir) throws Exception {
+        final TinkoffOperation first = operation(1, LocalDate.of(2020, Month.MARCH, 1), -100d, "first");
+        final TinkoffOperation second = operation(2, LocalDate.of(2020, Month.MARCH, 2), -200d, "second");
+        final TinkoffOperation hold = operation(3, null, -300d, "third");
+        final TinkoffOperation third = operation(3, LocalDate.of(2020, Month.MARCH, 4), -300d, "third");
+
+        // the later report is listed first and overlaps the earlier one
+        final AccountReportId later = new AccountReportId("a-later", Instant.now());
+        final AccountReportId earlier = new AccountReportId("b-earlier", Instant.now());
+        Mockito.when(reportRepository.stream(later)).thenAnswer(invocation -> Stream.of(third, second, first));
+        Mockito.when(reportRepository.stream(earlier)).thenAnswer(invocation -> Stream.of(first, hold));
+        Mockito.when(reportRepository.isUnprocessed(Mockito.any(AccountReportId.class))).thenReturn(true);
+        Mockito.when(accountRepository.find(ACCOUNT_NUMBER)).thenReturn(ACCOUNT);
+        Mockito.when(accountingService.registerOperation(
+                Mockito.any(AccountNumber.class),
+                Mockito.any(LocalDate.class),
+                Mockito.any(TransactionReference.class),
+                Mockito.any(OperationType.class),
+                Mockito.any(Money.class),
+                Mockito.anyString()
+        )).thenReturn(new OperationId("op-1"), new OperationId("op-2"), new OperationId("op-3"));
+
+        final AccountReportServiceTinkoff service =
+                new AccountReportServiceTinkoff(reportRepository, accountingService, accountRepository, cardRepository);
+        final TinkoffReportBackfill backfill = new TinkoffReportBackfill(reportRepository, service, 2, 0, dir, 1);
+
+        final TinkoffReportBackfill.BackfillResult result = backfill.backfill(List.of(later, earlier));
+        assertThat(result).isEqualTo(new TinkoffReportBackfill.BackfillResult(2, 5, 1, 4, true));
+
+        final InOrder inOrder = Mockito.inOrder(accountingService, reportRepository);
+        inOrder.verify(accountingService).registerOperation(Mockito.eq(ACCOUNT_NUMBER), Mockito.eq(first.paymentDate()),
+                Mockito.any(TransactionReference.class), Mockito.eq(OperationType.WITHDRAW), Mockito.any(Money.class),
+                Mockito.eq("first"));
+        inOrder.verify(accountingService).registerOperation(Mockito.eq(ACCOUNT_NUMBER), Mockito.eq(second.paymentDate()),
+                Mockito.any(TransactionReference.class), Mockito.eq(OperationType.WITHDRAW), Mockito.any(Money.class),
+                Mockito.eq("second"));
+        inOrder.verify(accountingService).registerHoldOperation(Mockito.eq(ACCOUNT_NUMBER),
+                Mockito.eq(LocalDate.of(2020, Month.MARCH, 3)), Mockito.eq(OperationType.WITHDRAW),
+                Mockito.any(Money.class), Mockito.eq("third"));
+        inOrder.verify(accountingService).registerOperation(Mockito.eq(ACCOUNT_NUMBER), Mockito.eq(third.paymentDate()),
+                Mockito.any(TransactionReference.class), Mockito.eq(OperationType.WITHDRAW), Mockito.any(Money.class),
+                Mockito.eq("third"));
+        inOrder.verify(accountingService).removeMatchingHoldOperations(new OperationId("op-3"));
+        inOrder.verify(reportRepository).markProcessed(later);
+        inOrder.verify(reportRepository).markProcessed(earlier);
+    }
+
+    @Test
+    public void markEachReportProcessed(@TempDir File dir) throws Exception {
+        final TinkoffOperation first = operation(1, LocalDate.of(2020, Month.MARCH, 1), -100d, "first");
+        final TinkoffOperation second = operation(2, LocalDate.of(2020, Month.MARCH, 2), -200d, "second");
+        final AccountReportId broken = new AccountReportId("a-broken", Instant.now());
+        final AccountReportId report = new AccountReportId("b-report", Instant.now());
+        // processed by a scan before the backfill started
+        final AccountReportId processed = new AccountReportId("c-processed", Instant.now());
+        Mockito.when(reportRepository.isUnprocessed(broken)).thenReturn(true);
+        Mockito.when(reportRepository.isUnprocessed(report)).thenReturn(true);
+        Mockito.when(reportRepository.isUnprocessed(processed)).thenReturn(false);
+        Mockito.when(reportRepository.stream(broken)).thenAnswer(invocation -> Stream.of(first));
+        Mockito.when(reportRepository.stream(report)).thenAnswer(invocation -> Stream.of(second));
+        Mockito.doThrow(new IllegalArgumentException("read-only")).when(reportRepository).markProcessed(broken);
+        Mockito.when(accountRepository.find(ACCOUNT_NUMBER)).thenReturn(ACCOUNT);
+        Mockito.when(accountingService.registerOperation(
+                Mockito.any(AccountNumber.class),
+                Mockito.any(LocalDate.class),
+                Mockito.any(TransactionReference.class),
+                Mockito.any(OperationType.class),
+                Mockito.any(Money.class),
+                Mockito.anyString()
+        )).thenReturn(new OperationId("op-1"), new OperationId("op-2"));
+
+        final AccountReportServiceTinkoff service =
+                new AccountReportServiceTinkoff(reportRepository, accountingService, accountRepository, cardRepository);
+        final TinkoffReportBackfill backfill = new TinkoffReportBackfill(reportRepository, service, 2, 0, dir, 1);
+
+        final TinkoffReportBackfill.BackfillResult result = backfill.backfill(List.of(broken, report, processed));
+        assertThat(result).isEqualTo(new TinkoffReportBackfill.BackfillResult(2, 2, 0, 2, false));
+
+        Mockito.verify(reportRepository).markProcessed(report);
+        Mockito.verify(reportRepository, Mockito.never()).stream(processed);
+        Mockito.verify(reportRepository, Mockito.never()).markProcessed(processed);
+    }
+}
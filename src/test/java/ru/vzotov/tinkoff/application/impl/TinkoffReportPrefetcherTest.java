@@ -0,0 +1,70 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import ru.vzotov.accounting.application.AccountingService;
+import ru.vzotov.accounting.domain.model.AccountReport;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.accounting.domain.model.AccountRepository;
+import ru.vzotov.accounting.domain.model.CardRepository;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportRepository;
+import ru.vzotov.tinkoff.domain.model.TinkoffRowFilter;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TinkoffReportPrefetcherTest {
+
+    @Test
+    public void readAheadWithinBudget() {
+        final AccountReportId first = new AccountReportId("first", Instant.now());
+        final AccountReportId second = new AccountReportId("second", Instant.now());
+        final AccountReportId large = new AccountReportId("large", Instant.now());
+        final AccountReportId last = new AccountReportId("last", Instant.now());
+        final Map<AccountReportId, Long> sizes = Map.of(first, 10L, second, 10L, large, 1000L, last, 10L);
+        final Set<String> loaded = ConcurrentHashMap.newKeySet();
+
+        final TinkoffReportPrefetcher prefetcher = new TinkoffReportPrefetcher(2, 100);
+        final List<String> taken = new ArrayList<>();
+        try (TinkoffReportPrefetcher.Prefetch<String> prefetch = prefetcher.prefetch(
+                List.of(first, second, large, last), sizes::get, reportId -> {
+                    loaded.add(reportId.name());
+                    return reportId.name();
+                })) {
+            taken.add(prefetch.next());
+            taken.add(prefetch.next());
+            // the large report does not fit into the budget and is read when taken
+            assertThat(loaded).doesNotContain("large", "last");
+            taken.add(prefetch.next());
+            taken.add(prefetch.next());
+            assertThat(prefetch.hasNext()).isFalse();
+        }
+        assertThat(taken).containsExactly("first", "second", "large", "last");
+    }
+
+    @Test
+    public void skipReportsFailedToRead() {
+        final AccountReportId broken = new AccountReportId("broken", Instant.now());
+        final AccountReportId valid = new AccountReportId("valid", Instant.now());
+        final TinkoffReportRepository repository = Mockito.mock(TinkoffReportRepository.class);
+        Mockito.when(repository.findUnprocessed()).thenReturn(List.of(broken, valid));
+        Mockito.when(repository.decodedSizeOf(Mockito.any(AccountReportId.class))).thenReturn(10L);
+        Mockito.when(repository.find(broken, TinkoffRowFilter.NONE)).thenThrow(new IllegalArgumentException("broken"));
+        Mockito.when(repository.find(valid, TinkoffRowFilter.NONE)).thenReturn(new AccountReport<>(valid, List.of()));
+
+        final AccountReportServiceTinkoff service = new AccountReportServiceTinkoff(repository,
+                Mockito.mock(AccountingService.class), Mockito.mock(AccountRepository.class),
+                Mockito.mock(CardRepository.class));
+        service.setPrefetcher(new TinkoffReportPrefetcher(2, 100));
+        service.processNewReports();
+
+        Mockito.verify(repository).markProcessed(valid);
+        Mockito.verify(repository, Mockito.never()).markProcessed(broken);
+    }
+}
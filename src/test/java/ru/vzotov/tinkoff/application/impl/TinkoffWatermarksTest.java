@@ -0,0 +1,71 @@
+package ru.vzotov.tinkoff.application.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffRowFilter;
+import ru.vzotov.tinkoff.infrastructure.fs.TinkoffReportRepositoryFiles;
+
+import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TinkoffWatermarksTest {
+
+    private static final File BASEDIR = new File("src/test/resources/account-reports");
+
+    private static TinkoffOperation hold(LocalDateTime operationDate) {
+        return new TinkoffOperation(null, operationDate, null, null,
+                -100d, "RUR", -100d, "RUR", null, null, null, "hold", null);
+    }
+
+    @Test
+    public void skipRowsBelowWatermarks(@TempDir File dir) {
+        final TinkoffReportRepositoryFiles repository = new TinkoffReportRepositoryFiles(BASEDIR.getAbsolutePath(), true);
+        final AccountReportId march = new AccountReportId("operations_3.csv", Instant.now());
+        final AccountReportId quarter = new AccountReportId("operations_1.csv", Instant.now());
+        final AccountReportId cardless = new AccountReportId("report_2.csv", Instant.now());
+        final File file = new File(dir, "watermarks");
+        final TinkoffWatermarks watermarks = new TinkoffWatermarks(file, Duration.ofDays(1), true);
+
+        watermarks.reportProcessed(march, repository.find(march).operations());
+        assertThat(watermarks.watermarkOf("*1234")).isEqualTo(LocalDateTime.of(2020, Month.MARCH, 12, 17, 18, 41));
+        assertThat(watermarks.watermarkOf("RUR")).isNull();
+
+        // rows of the card after 11.03.2020 17:18:41 are kept, the row without a card has no watermark yet
+        final List<TinkoffOperation> all = repository.find(quarter).operations();
+        assertThat(all.get(16).operationDate()).isEqualTo(LocalDateTime.of(2020, Month.MARCH, 11, 18, 15, 43));
+        assertThat(all.get(34).cardNumber()).isNull();
+        final List<TinkoffOperation> expected = new ArrayList<>(all.subList(0, 17));
+        expected.add(all.get(34));
+        assertThat(repository.find(quarter, watermarks).operations()).isEqualTo(expected);
+
+        // rows without a card and an account are tracked by currency
+        final TinkoffRowFilter snapshot = watermarks.snapshot();
+        watermarks.reportProcessed(cardless, repository.find(cardless).operations());
+        assertThat(snapshot.skip(null, null, "RUR", LocalDateTime.of(2023, Month.MARCH, 1, 0, 0))).isFalse();
+        assertThat(watermarks.watermarkOf("RUR")).isEqualTo(LocalDateTime.of(2023, Month.MARCH, 24, 23, 10, 10));
+        assertThat(watermarks.skip(null, null, "RUR", LocalDateTime.of(2023, Month.MARCH, 1, 0, 0))).isTrue();
+        assertThat(watermarks.skip(null, null, "USD", LocalDateTime.of(2023, Month.MARCH, 1, 0, 0))).isFalse();
+
+        // a hold dated inside the margin is kept, an older one is skipped
+        assertThat(watermarks.skip(hold(LocalDateTime.of(2023, Month.MARCH, 24, 12, 0)))).isFalse();
+        assertThat(watermarks.skip(hold(LocalDateTime.of(2023, Month.MARCH, 23, 12, 0)))).isTrue();
+        // holds do not move watermarks
+        watermarks.reportProcessed(cardless, List.of(hold(LocalDateTime.of(2023, Month.APRIL, 1, 0, 0))));
+        assertThat(watermarks.watermarkOf("RUR")).isEqualTo(LocalDateTime.of(2023, Month.MARCH, 24, 23, 10, 10));
+
+        final TinkoffWatermarks loaded = new TinkoffWatermarks(file, Duration.ZERO, true);
+        assertThat(loaded.watermarkOf("*1234")).isEqualTo(LocalDateTime.of(2020, Month.MARCH, 12, 17, 18, 41));
+        assertThat(loaded.watermarkOf("RUR")).isEqualTo(LocalDateTime.of(2023, Month.MARCH, 24, 23, 10, 10));
+        assertThat(repository.find(quarter, new TinkoffWatermarks(file, Duration.ZERO, false)).operations())
+                .isEqualTo(all);
+    }
+}
@@ -1,6 +1,9 @@
 package ru.vzotov.tinkoff.infrastructure.fs;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.vzotov.accounting.domain.model.AccountReport;
@@ -8,15 +11,29 @@ import ru.vzotov.accounting.domain.model.AccountReportId;
 import ru.vzotov.banking.domain.model.MccCode;
 import ru.vzotov.domain.model.Money;
 import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+import ru.vzotov.tinkoff.domain.model.TinkoffReportUpload;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Currency;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class AccountReportRepositoryFilesTest {
 
@@ -71,4 +88,158 @@ public class AccountReportRepositoryFilesTest {
                 .hasSameElementsAs(csvOperations.operations());
     }
 
+    @Test
+    public void reactiveFind() {
+        final TinkoffReportRepositoryFiles repo = new TinkoffReportRepositoryFiles(BASEDIR.getAbsolutePath(), true);
+        final ReactiveTinkoffReportRepository reactive = new ReactiveTinkoffReportRepository(repo);
+        for (AccountReportId id : repo.findAll()) {
+            final List<TinkoffOperation> operations = repo.find(id).operations();
+            assertThat(reactive.find(id).collectList().block()).isEqualTo(operations);
+            assertThat(reactive.find(id).take(2).collectList().block()).isEqualTo(operations.subList(0, 2));
+        }
+    }
+
+    @Test
+    public void archiveProcessed(@TempDir File inbox) throws IOException {
+        final ReportArchive archive = new ReportArchive(new File(inbox, "archive"), true);
+        final TinkoffReportRepositoryFiles repo = new TinkoffReportRepositoryFiles(inbox.getAbsolutePath(), false, archive);
+        final String name = "operations_2.csv";
+        final AccountReportId reportId;
+        try (InputStream content = new FileInputStream(new File(BASEDIR, name))) {
+            reportId = repo.save(name, content);
+        }
+        final Instant created = Files.readAttributes(new File(inbox, name).toPath(), BasicFileAttributes.class)
+                .creationTime().toInstant();
+
+        repo.markProcessed(reportId);
+
+        assertThat(repo.findUnprocessed()).isEmpty();
+        assertThat(new File(inbox, name)).doesNotExist();
+        assertThat(archive.locate("operations_2_processed.csv.gz"))
+                .isNotNull()
+                .hasParent(archive.shardOf(created));
+
+        final List<AccountReportId> all = repo.findAll();
+        assertThat(all).hasSize(1);
+        assertThat(repo.find(all.get(0)).operations()).hasSize(22);
+    }
+
+    @Test
+    public void saveRejectsSameContent(@TempDir File inbox) throws IOException {
+        final TinkoffReportRepositoryFiles repo = new TinkoffReportRepositoryFiles(inbox.getAbsolutePath());
+        final File source = new File(BASEDIR, "operations_2.csv");
+        try (InputStream content = new FileInputStream(source)) {
+            repo.save("operations_2.csv", content);
+        }
+        try (InputStream content = new ByteArrayInputStream(Files.readAllBytes(source.toPath()))) {
+            assertThatThrownBy(() -> repo.save("copy.csv", content))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageContaining("operations_2.csv");
+        }
+        assertThat(repo.findUnprocessed()).hasSize(1);
+    }
+
+    @Test
+    public void saveContentOfRemovedReport(@TempDir File inbox) throws IOException {
+        final File source = new File(BASEDIR, "operations_2.csv");
+        final TinkoffReportRepositoryFiles repo = new TinkoffReportRepositoryFiles(inbox.getAbsolutePath());
+        try (InputStream content = new FileInputStream(source)) {
+            repo.markProcessed(repo.save("operations_2.csv", content));
+        }
+        // the processed report keeps its content
+        try (InputStream content = new FileInputStream(source)) {
+            assertThatThrownBy(() -> repo.save("copy.csv", content))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageContaining("operations_2.csv");
+        }
+
+        Files.delete(new File(inbox, "operations_2_processed.csv").toPath());
+        try (InputStream content = new FileInputStream(source)) {
+            repo.save("copy.csv", content);
+        }
+        // the index is loaded from its file on start
+        final TinkoffReportRepositoryFiles restarted = new TinkoffReportRepositoryFiles(inbox.getAbsolutePath());
+        try (InputStream content = new FileInputStream(source)) {
+            assertThatThrownBy(() -> restarted.save("another.csv", content))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageContaining("copy.csv");
+        }
+    }
+
+    @Test
+    public void discoverReportsOnce(@TempDir File dir) throws IOException {
+        final TinkoffReportRepositoryFiles repo = new TinkoffReportRepositoryFiles(BASEDIR.getAbsolutePath(), true);
+        final File dump = new File(dir, "discovered.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("ru.vzotov.tinkoff.ReportDiscovered");
+            recording.start();
+            repo.findUnprocessed();
+            repo.findUnprocessed();
+            recording.stop();
+            recording.dump(dump.toPath());
+        }
+        final List<String> discovered = RecordingFile.readAllEvents(dump.toPath()).stream()
+                .map(event -> event.getString("reportId"))
+                .toList();
+        assertThat(discovered).containsExactlyInAnyOrderElementsOf(
+                repo.findUnprocessed().stream().map(AccountReportId::name).toList());
+    }
+
+    @Test
+    public void saveAndParse(@TempDir File inbox) throws IOException {
+        final TinkoffReportRepositoryFiles repo = new TinkoffReportRepositoryFiles(inbox.getAbsolutePath());
+        try (InputStream content = new FileInputStream(new File(BASEDIR, "report_1.ofx"))) {
+            final TinkoffReportUpload upload = repo.saveAndParse("report_1.ofx", content);
+            assertThat(upload.rows()).isEqualTo(9);
+            assertThat(new File(inbox, "report_1.ofx")).hasSameBinaryContentAs(new File(BASEDIR, "report_1.ofx"));
+        }
+
+        try (InputStream content = new ByteArrayInputStream("<OFX><STMTTRN>".getBytes(StandardCharsets.UTF_8))) {
+            assertThatThrownBy(() -> repo.saveAndParse("broken.ofx", content))
+                    .isInstanceOf(IllegalArgumentException.class);
+        }
+        assertThat(new File(inbox, "broken.ofx")).doesNotExist();
+        assertThat(repo.findUnprocessed()).hasSize(1);
+
+        final AccountReportId reportId = repo.findUnprocessed().get(0);
+        assertThat(repo.isUnprocessed(reportId)).isTrue();
+        repo.markProcessed(reportId);
+        assertThat(repo.isUnprocessed(reportId)).isFalse();
+    }
+
+    @Test
+    public void compressedReports(@TempDir File inbox) throws IOException {
+        final TinkoffReportRepositoryFiles repo = new TinkoffReportRepositoryFiles(inbox.getAbsolutePath());
+        final byte[] csv = Files.readAllBytes(new File(BASEDIR, "operations_2.csv").toPath());
+        final byte[] ofx = Files.readAllBytes(new File(BASEDIR, "report_1.ofx").toPath());
+
+        final ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gz)) {
+            out.write(csv);
+        }
+        final ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(zip)) {
+            out.putNextEntry(new ZipEntry("report_1.ofx"));
+            out.write(ofx);
+            out.closeEntry();
+        }
+
+        final AccountReportId csvId = repo.save("operations.csv.gz", new ByteArrayInputStream(gz.toByteArray()));
+        assertThat(repo.find(csvId).operations()).hasSize(22);
+        assertThat(repo.decodedSizeOf(csvId)).isEqualTo(csv.length);
+
+        final TinkoffReportUpload upload = repo.saveAndParse("report.zip", new ByteArrayInputStream(zip.toByteArray()));
+        assertThat(upload.rows()).isEqualTo(9);
+        assertThat(repo.find(upload.reportId()).operations()).hasSize(9);
+        assertThat(repo.decodedSizeOf(upload.reportId())).isEqualTo(ofx.length);
+
+        assertThatThrownBy(() -> repo.save("operations.csv", new ByteArrayInputStream(csv)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("operations.csv.gz");
+
+        repo.markProcessed(csvId);
+        assertThat(new File(inbox, "operations_processed.csv.gz")).exists();
+        assertThat(repo.findUnprocessed()).hasSize(1);
+    }
+
 }
@@ -0,0 +1,56 @@
+package ru.vzotov.tinkoff.infrastructure.fs;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExternalSorterTest {
+
+    private static final ExternalSorter.Codec<long[]> CODEC = new ExternalSorter.Codec<>() {
+        @Override
+        public void write(DataOutput out, long[] element) throws IOException {
+            out.writeLong(element[0]);
+            out.writeLong(element[1]);
+        }
+
+        @Override
+        public long[] read(DataInput in) throws IOException {
+            return new long[]{in.readLong(), in.readLong()};
+        }
+    };
+
+    @Test
+    public void stableMergeOfManyRuns(@TempDir File dir) throws IOException {
+        final Random random = new Random(42);
+        final List<long[]> elements = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            elements.add(new long[]{random.nextInt(100), i});
+        }
+
+        final List<long[]> sorted = new ArrayList<>();
+        try (ExternalSorter<long[]> sorter = new ExternalSorter<>(dir, 16 * 100,
+                Comparator.comparingLong(e -> e[0]), CODEC, e -> 16)) {
+            sorter.addAll(elements);
+            assertThat(sorter.runs()).isGreaterThan(ExternalSorter.MAX_FAN_IN);
+            sorter.sorted().forEachRemaining(sorted::add);
+        }
+
+        final List<long[]> expected = new ArrayList<>(elements);
+        expected.sort(Comparator.comparingLong(e -> e[0]));
+        assertThat(sorted).hasSize(expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(sorted.get(i)).containsExactly(expected.get(i));
+        }
+        assertThat(dir.listFiles()).isEmpty();
+    }
+}
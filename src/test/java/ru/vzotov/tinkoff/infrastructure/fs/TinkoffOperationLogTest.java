@@ -0,0 +1,60 @@
+package ru.vzotov.tinkoff.infrastructure.fs;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.vzotov.accounting.domain.model.AccountReportId;
+import ru.vzotov.banking.domain.model.AccountNumber;
+import ru.vzotov.tinkoff.domain.model.TinkoffOperation;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TinkoffOperationLogTest {
+
+    private static TinkoffOperation operation(int day, double amount) {
+        return new TinkoffOperation(null,
+                LocalDateTime.of(2020, Month.MARCH, day, 12, 0, 1, 500), LocalDate.of(2020, Month.MARCH, day + 1), "*1234",
+                amount, "RUR", amount, "RUR", null, "Супермаркеты", "5411", "Магнит", 1d);
+    }
+
+    @Test
+    public void appendReplayAndCompact(@TempDir File dir) throws Exception {
+        final TinkoffOperation deposit = new TinkoffOperation(new AccountNumber("40817810000000000001"),
+                LocalDateTime.of(2020, Month.MARCH, 5, 0, 0), null, null,
+                1000d, "RUR", 1000d, "RUR", null, null, null, "Пополнение", null);
+        final List<TinkoffOperation> march1 = List.of(operation(1, -100d), operation(2, -50.5d));
+        final List<TinkoffOperation> march2 = List.of(operation(2, -50.5d), operation(3, -10d), deposit);
+
+        // small segments to make the log roll
+        try (TinkoffOperationLog log = new TinkoffOperationLog(dir, 256)) {
+            log.append(new AccountReportId("march-1", Instant.now()), march1);
+            log.append(new AccountReportId("march-2", Instant.now()), march2);
+        }
+        assertThat(dir.list((d, name) -> name.endsWith(".log"))).hasSizeGreaterThan(2);
+
+        try (TinkoffOperationLog log = new TinkoffOperationLog(dir, 256)) {
+            final List<String> reports = new ArrayList<>();
+            final List<TinkoffOperation> replayed = new ArrayList<>();
+            log.replay((reportId, operations) -> {
+                reports.add(reportId.name());
+                replayed.addAll(operations);
+            });
+            assertThat(reports).containsExactly("march-1", "march-2");
+            assertThat(replayed).containsExactly(march1.get(0), march1.get(1), march2.get(0), march2.get(1), deposit);
+
+            log.append(new AccountReportId("march-3", Instant.now()), List.of(operation(4, -1d)));
+            assertThat(log.compact()).isEqualTo(1);
+
+            replayed.clear();
+            log.replay((reportId, operations) -> replayed.addAll(operations));
+            assertThat(replayed).containsExactly(march1.get(0), march1.get(1), march2.get(1), deposit, operation(4, -1d));
+        }
+    }
+}